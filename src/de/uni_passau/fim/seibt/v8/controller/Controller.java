@@ -3,10 +3,9 @@ package de.uni_passau.fim.seibt.v8.controller;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import javax.imageio.ImageIO;
@@ -33,11 +32,13 @@ import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import de.uni_passau.fim.seibt.v8.model.mc_alg.MCRunner;
-import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.ArrayVolume;
 import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.CachedVolume;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.LazyVolume;
 import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.MCVolume;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.VolumePyramid;
 import de.uni_passau.fim.seibt.v8.model.mc_alg.metaball_volume.MetaBallVolume;
-import de.uni_passau.fim.seibt.v8.util.Exporter;
+import de.uni_passau.fim.seibt.v8.util.ExportService;
+import de.uni_passau.fim.seibt.v8.util.V8mReader;
 
 import static de.uni_passau.fim.seibt.v8.model.mc_alg.MCRunner.Type.COMPLETE;
 
@@ -46,6 +47,38 @@ import static de.uni_passau.fim.seibt.v8.model.mc_alg.MCRunner.Type.COMPLETE;
  */
 public class Controller {
 
+    /**
+     * The maximum number of bytes the slice cache of a <code>CachedVolume</code> may occupy.
+     */
+    private static final long SLICE_CACHE_BYTES = 256L << 20;
+
+    /**
+     * The number of levels of the <code>VolumePyramid</code> built for grid sizes greater than 1 (1x, 2x, 4x, 8x).
+     */
+    private static final int PYRAMID_LEVELS = 4;
+
+    /**
+     * The filter used to build the coarse levels of the <code>VolumePyramid</code>. The average matches what
+     * sampling every n-th voxel approximates, <code>MAX</code> would keep thin bright structures but thickens the
+     * surface of everything else.
+     */
+    private static final VolumePyramid.Filter PYRAMID_FILTER = VolumePyramid.Filter.BOX;
+
+    /**
+     * The number of slices of a metaball volume computed at once by its <code>LazyVolume</code>.
+     */
+    private static final int METABALL_SLAB_SIZE = 8;
+
+    /**
+     * The number of files written at the same time in export mode.
+     */
+    private static final int EXPORT_THREADS = 2;
+
+    /**
+     * The maximum number of bytes the meshes waiting for or being exported may occupy.
+     */
+    private static final long EXPORT_BYTES = 512L << 20;
+
     @FXML
     private Label levelLabel;
     @FXML
@@ -95,6 +128,9 @@ public class Controller {
     boolean previewMode = false;
     boolean cacheMode;
     private PreviewImageService previewImageService;
+    private Task<MCVolume> runningLoader; // the last started raster loader
+    private ExportService exportService;
+    private volatile ExportService.Export runningExport; // the last submitted export
 
     /**
      * Called by the FXMLLoader, initializes the <code>Controller</code>.
@@ -104,6 +140,7 @@ public class Controller {
         dirCache = new HashMap<>();
         directories = directoriesList.getItems();
         previewImageService = new PreviewImageService();
+        exportService = new ExportService(EXPORT_THREADS, EXPORT_BYTES);
         cacheMode = cacheCheckBox.isSelected();
 
         previewImageService.setOnSucceeded(event -> {
@@ -237,17 +274,29 @@ public class Controller {
 
         lastDir = dir.getParentFile();
 
-        File[] dcmFiles = dir.listFiles((ignored, name) -> name.endsWith(".dcm"));
-        List<DCMImage> images = Arrays.stream(dcmFiles)
-                        .map(DCMImage::getDCMImages)
-                        .reduce(new LinkedList<>(), (l1, l2) -> {l1.addAll(l2); return l1; });
+        Task<List<DCMImage>> scanner = new Task<List<DCMImage>>() {
 
-        if (images.isEmpty()) {
-            return;
-        }
+            @Override
+            protected List<DCMImage> call() throws Exception {
+                return DirectoryIndex.getDCMImages(dir);
+            }
+        };
+
+        scanner.setOnSucceeded(event -> {
+            List<DCMImage> images = scanner.getValue();
+
+            if (images.isEmpty() || directories.contains(dir)) {
+                return;
+            }
 
-        dirCache.put(dir, FXCollections.observableList(images));
-        directories.add(dir);
+            dirCache.put(dir, FXCollections.observableList(images));
+            directories.add(dir);
+        });
+
+        Thread scannerThread = new Thread(scanner);
+        scannerThread.setName(DirectoryIndex.class.getSimpleName());
+        scannerThread.setDaemon(true);
+        scannerThread.start();
     }
 
     /**
@@ -267,6 +316,25 @@ public class Controller {
         new Histogram(filesList).show();
     }
 
+    /**
+     * ActionListener for the 'Open Mesh' button. Shows a mesh stored in a .v8m file in a <code>MeshView3D</code>.
+     */
+    @FXML
+    private void openMeshClicked() {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("V8 Mesh", "*.v8m"));
+
+        File meshFile = fileChooser.showOpenDialog(stage);
+
+        if (meshFile == null) {
+            return;
+        }
+
+        Thread glThread = new Thread(() -> new MeshView3D(() -> V8mReader.read(meshFile)).show());
+        glThread.setName(MeshView3D.class.getSimpleName());
+        glThread.start();
+    }
+
     /**
      * ActionListener for the 'Go!' button.
      */
@@ -289,28 +357,13 @@ public class Controller {
 
                 @Override
                 protected MCVolume call() throws Exception {
-                    return new CachedVolume(images, 4);
+                    return new CachedVolume(images, SLICE_CACHE_BYTES);
                 }
             };
 
             dataLoadingProgress.progressProperty().setValue(-1);
         } else if (dataSource.getSelectedToggle().equals(imageRButton)) {
-
-            rasterLoader = new Task<MCVolume>() {
-
-                @Override
-                protected MCVolume call() throws Exception {
-                    float[][][] data = new float[images.size()][][];
-
-                    Iterator<DCMImage> it = images.iterator();
-                    for (int i = 0; i < images.size() && it.hasNext(); i++) {
-                        data[i] = it.next().getImageRaster();
-                        updateProgress(i, images.size());
-                    }
-
-                    return new ArrayVolume(data);
-                }
-            };
+            rasterLoader = new SeriesLoader(images);
 
             dataLoadingProgress.progressProperty().bind(rasterLoader.progressProperty());
         } else if (dataSource.getSelectedToggle().equals(randRButton)) {
@@ -324,11 +377,11 @@ public class Controller {
 
                 @Override
                 protected MCVolume call() throws Exception {
-                    dataLoadingProgress.progressProperty().bind(volume.progressProperty());
-
-                    return new ArrayVolume(volume.getVolume());
+                    return new LazyVolume(volume, METABALL_SLAB_SIZE, SLICE_CACHE_BYTES);
                 }
             };
+
+            dataLoadingProgress.progressProperty().setValue(-1);
         } else {
             return;
         }
@@ -337,9 +390,20 @@ public class Controller {
 
         Toggle selToggle = mcType.getSelectedToggle();
         if (selToggle.equals(exportRBtn)) {
+            Map<FileChooser.ExtensionFilter, ExportService.Format> formats = new LinkedHashMap<>();
+            formats.put(new FileChooser.ExtensionFilter("Wavefront OBJ", "*.obj"), ExportService.Format.OBJ);
+            formats.put(new FileChooser.ExtensionFilter("Surface Tesselation Language", "*.stl"),
+                    ExportService.Format.STL);
+            formats.put(new FileChooser.ExtensionFilter("Stanford PLY", "*.ply"), ExportService.Format.PLY);
+            formats.put(new FileChooser.ExtensionFilter("Stanford PLY, 16 bit", "*.ply"),
+                    ExportService.Format.PLY_QUANTIZED);
+            formats.put(new FileChooser.ExtensionFilter("glTF Binary", "*.glb"), ExportService.Format.GLB);
+            formats.put(new FileChooser.ExtensionFilter("glTF Binary, quantized", "*.glb"),
+                    ExportService.Format.GLB_QUANTIZED);
+            formats.put(new FileChooser.ExtensionFilter("V8 Mesh", "*.v8m"), ExportService.Format.V8M);
+
             FileChooser fileChooser = new FileChooser();
-            fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Wavefront OBJ", "*.obj"));
-            fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Surface Tesselation Language", "*.stl"));
+            fileChooser.getExtensionFilters().addAll(formats.keySet());
 
             File saveFile = fileChooser.showSaveDialog(stage);
 
@@ -347,22 +411,42 @@ public class Controller {
                 return;
             }
 
+            // a typed extension wins over the selected filter unless they agree
+            ExportService.Format selected = formats.get(fileChooser.getSelectedExtensionFilter());
+            ExportService.Format typed = ExportService.Format.of(saveFile);
+            ExportService.Format format =
+                    (selected != null && (typed == null || typed.extension().equals(selected.extension())))
+                            ? selected : typed;
+
+            if (format == null) {
+                return;
+            }
+
+            runningExport = null;
+
             rasterLoader.setOnSucceeded(event -> {
-                MCRunner mcRunner = new MCRunner(rasterLoader.getValue(), level, gridSize, COMPLETE);
+                MCRunner mcRunner = new MCRunner(pyramid(rasterLoader.getValue()), level, gridSize, COMPLETE);
 
                 mcProgress.progressProperty().bind(mcRunner.progressProperty());
-                mcRunner.setOnRunFinished(l -> Platform.runLater(() -> loadingBarBox.setVisible(false)));
+                mcRunner.setOnRunFinished(l -> {
+
+                    if (runningExport == null) { // no mesh was produced
+                        Platform.runLater(() -> loadingBarBox.setVisible(false));
+                    }
+                });
                 mcRunner.setOnMeshFinished(m -> {
-                    Thread exporter = new Thread(() -> {
-
-                        if (saveFile.getName().endsWith("obj")) {
-                            Exporter.exportOBJ(m, saveFile);
-                        } else if (saveFile.getName().endsWith("stl")) {
-                            Exporter.exportSTL(m, saveFile);
-                        }
-                    });
-                    exporter.setName(Exporter.class.getSimpleName());
-                    exporter.start();
+                    ExportService.Export export;
+
+                    try {
+                        export = exportService.submit(m, saveFile, EnumSet.of(format));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+
+                    runningExport = export;
+                    Platform.runLater(() -> mcProgress.progressProperty().bind(export.progressProperty()));
+                    export.setOnFinished(e -> Platform.runLater(() -> loadingBarBox.setVisible(false)));
                 });
 
                 Thread runnerThread = new Thread(mcRunner);
@@ -373,7 +457,7 @@ public class Controller {
             MCRunner.Type type = MCRunner.Type.valueOf(((RadioButton) selToggle).getText().toUpperCase());
 
             rasterLoader.setOnSucceeded(event -> {
-                MCRunner mcRunner = new MCRunner(rasterLoader.getValue(), level, gridSize, type);
+                MCRunner mcRunner = new MCRunner(pyramid(rasterLoader.getValue()), level, gridSize, type);
 
                 mcProgress.progressProperty().bind(mcRunner.progressProperty());
                 mcRunner.setOnRunFinished(l -> Platform.runLater(() -> loadingBarBox.setVisible(false)));
@@ -386,11 +470,46 @@ public class Controller {
             return;
         }
 
+        rasterLoader.setOnCancelled(event -> loadingBarBox.setVisible(false));
+        runningLoader = rasterLoader;
+
         Thread rasterLoaderThread = new Thread(rasterLoader);
         rasterLoaderThread.setName("RasterLoader");
         rasterLoaderThread.start();
     }
 
+    /**
+     * Returns a <code>VolumePyramid</code> over the given volume. Its coarse levels are built by the
+     * <code>MCRunner</code> when a grid size greater than 1 is used, using the {@link #PYRAMID_FILTER}. A
+     * <code>LazyVolume</code> or <code>CachedVolume</code> only gets level 0, building a coarse level would compute or
+     * decode all of its slices up front while a strided run only touches every gridSize-th of them.
+     *
+     * @param volume
+     *         the volume
+     *
+     * @return the <code>VolumePyramid</code>
+     */
+    private static VolumePyramid pyramid(MCVolume volume) {
+        int levels = (volume instanceof LazyVolume || volume instanceof CachedVolume) ? 1 : PYRAMID_LEVELS;
+
+        return new VolumePyramid(volume, levels, PYRAMID_FILTER);
+    }
+
+    /**
+     * ActionListener for the 'Cancel' button next to the data loading progress bar.
+     */
+    @FXML
+    private void cancelLoadingClicked() {
+
+        if (runningLoader != null) {
+            runningLoader.cancel();
+        }
+
+        if (runningExport != null) {
+            runningExport.cancel();
+        }
+    }
+
     /**
      * ActionListener for the 'Reset' button.
      */
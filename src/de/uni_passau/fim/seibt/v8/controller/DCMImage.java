@@ -1,41 +1,114 @@
 package de.uni_passau.fim.seibt.v8.controller;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import javax.imageio.spi.ImageReaderSpi;
 import javax.imageio.stream.FileImageInputStream;
 
 import javafx.embed.swing.SwingFXUtils;
 import javafx.scene.image.WritableImage;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
 import org.dcm4che3.imageio.plugins.dcm.DicomImageReader;
+import org.dcm4che3.imageio.plugins.dcm.DicomMetaData;
 import org.dcm4che3.imageio.plugins.dcm.DicomImageReaderSpi;
+import org.dcm4che3.io.DicomInputStream;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.ShortVolume;
+import de.uni_passau.fim.seibt.v8.util.Buffers;
+import de.uni_passau.fim.seibt.v8.util.jfr.DCMReadEvent;
+import de.uni_passau.fim.seibt.v8.util.metrics.Metrics;
 
 /**
  * A lazy loading DICOM image constructed from a file.
  * Instances should be constructed using the {@link #getDCMImages(java.io.File)} method.
+ * Instances may be read from different threads in parallel, they share a pool of <code>DicomImageReader</code>s.
  */
 public class DCMImage {
 
+    /**
+     * An operation on a <code>DicomImageReader</code> whose input was set to the file of a <code>DCMImage</code>.
+     *
+     * @param <T>
+     *         the type of the result
+     */
+    private interface ReaderOperation<T> {
+
+        /**
+         * Executes the operation.
+         *
+         * @param reader
+         *         the <code>DicomImageReader</code> to use
+         *
+         * @return the result of the operation
+         *
+         * @throws IOException
+         *         if there is an exception reading from disk
+         */
+        T apply(DicomImageReader reader) throws IOException;
+    }
+
     private static ImageReaderSpi spi = new DicomImageReaderSpi();
-    private static DicomImageReader imageReader;
+
+    /**
+     * The pool of <code>DicomImageReader</code>s, contains one reader per available processor.
+     */
+    private static BlockingQueue<DicomImageReader> imageReaders;
+    private static int numReaders; // the number of readers that were created successfully
 
     static {
+        int poolSize = Runtime.getRuntime().availableProcessors();
+
+        imageReaders = new ArrayBlockingQueue<>(poolSize);
+
         try {
-            imageReader = (DicomImageReader) spi.createReaderInstance();
+            for (; numReaders < poolSize; numReaders++) {
+                imageReaders.add((DicomImageReader) spi.createReaderInstance());
+            }
         } catch (IOException e) {
             System.err.println("Could not create the DicomImageReader. " + e);
         }
     }
 
+    /**
+     * Per thread buffer for reading pixel data directly from the files, see {@link #readSamplesDirect(ShortBuffer)}.
+     */
+    private static ThreadLocal<ByteBuffer> ioBuffers = ThreadLocal.withInitial(() -> Buffers.allocateByteBuffer(0));
+
     private File file;
-    private BufferedImage awtImage;
     private WritableImage fxImage;
     private int frameIndex;
 
+    // location of the pixel data in the file, see findPixelData()
+    private boolean pixelDataSearched;
+    private long pixelDataPosition; // the position of the pixel data of this frame or -1 if it can not be read directly
+    private int bitsStored;
+
+    // information from the header of the file, see readHeader(), guarded by this
+    private boolean headerRead;
+    private int width;
+    private int height;
+    private boolean signed;
+    private float rescaleSlope;
+    private float rescaleIntercept;
+    private float windowCenter;
+    private float windowWidth;
+    private boolean linearWindow;
+
     /**
      * Constructs a new <code>DCMImage</code> from the given <code>File</code>.
      *
@@ -44,11 +117,51 @@ public class DCMImage {
      * @param  frameIndex
      *      the index of the image in the file
      */
-    private DCMImage(File file, int frameIndex) {
+    DCMImage(File file, int frameIndex) {
         this.file = file;
         this.frameIndex = frameIndex;
     }
 
+    /**
+     * Takes a <code>DicomImageReader</code> from the pool, sets its input to <code>file</code> and applies
+     * <code>operation</code> to it. The file is closed and the reader is returned to the pool afterwards. Blocks
+     * while all readers are in use.
+     *
+     * @param file
+     *         the .dcm <code>File</code> to read from
+     * @param operation
+     *         the operation to execute
+     * @param <T>
+     *         the type of the result
+     *
+     * @return the result of the operation
+     *
+     * @throws IOException
+     *         if there is an exception reading from disk or the thread is interrupted while waiting for a reader
+     */
+    private static <T> T withReader(File file, ReaderOperation<T> operation) throws IOException {
+        DicomImageReader reader;
+
+        if (numReaders == 0) {
+            throw new IOException("There is no DicomImageReader.");
+        }
+
+        try {
+            reader = imageReaders.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a DicomImageReader.");
+        }
+
+        try (FileImageInputStream input = new FileImageInputStream(file)) {
+            reader.setInput(input);
+            return operation.apply(reader);
+        } finally {
+            reader.setInput(null);
+            imageReaders.add(reader);
+        }
+    }
+
     /**
      * Reads all <code>DCMImage</code> instances from the given .dcm <code>File</code>.
      *
@@ -62,8 +175,8 @@ public class DCMImage {
         int numImages;
 
         try {
-            imageReader.setInput(new FileImageInputStream(file));
-            numImages = imageReader.getNumImages(true);
+
+            numImages = withReader(file, reader -> reader.getNumImages(true));
 
             for (int i = 0; i < numImages; i++) {
                 images.add(new DCMImage(file, i));
@@ -77,14 +190,21 @@ public class DCMImage {
     }
 
     /**
-     * Gets a <code>WritableImage</code> representation of this DICOM image.
+     * Gets a <code>WritableImage</code> representation of this DICOM image. The image is read from disk on every
+     * call.
      *
      * @return
      *      the resulting <code>WritableImage</code>
      */
     public WritableImage getImage() {
+        BufferedImage image;
 
-        BufferedImage image = getAWTImage();
+        try {
+            image = readAWTImage();
+        } catch (IOException e) {
+            System.err.println("Could not read an image. " + e);
+            return null;
+        }
 
         if (fxImage == null) {
             fxImage = new WritableImage(image.getWidth(), image.getHeight());
@@ -94,62 +214,423 @@ public class DCMImage {
     }
 
     /**
-     * Gets the AWT <code>BufferedImage</code> representing this DICOM image.
+     * Reads the AWT image from the <code>file</code>.
      *
      * @return
      *      the resulting <code>BufferedImage</code>
+     * @throws IOException
+     *      if there is an exception reading from disk
      */
-    private BufferedImage getAWTImage() {
+    private BufferedImage readAWTImage() throws IOException {
+        BufferedImage bufferedImage;
+        DCMReadEvent event = new DCMReadEvent();
+        long startTime = System.nanoTime();
 
-        if (awtImage == null) {
-            try {
-                awtImage = readAWTImage();
-            } catch (IOException e) {
-                System.err.println("Could not read an image. " + e);
+        event.begin();
+
+        bufferedImage = withReader(file, reader -> reader.read(frameIndex, reader.getDefaultReadParam()));
+
+        if (bufferedImage == null) {
+            System.err.println("Could not read a BufferedImage from an image." + file);
+        } else {
+            readFinished(event, startTime, bufferedImage.getWidth(), bufferedImage.getHeight());
+        }
+
+        return bufferedImage;
+    }
+
+    /**
+     * Reads the stored pixel values of this image into <code>target</code>. The values are neither rescaled nor
+     * windowed (see {@link #getRescaleSlope()} and {@link #getWindowCenter()}), x varies fastest. The position of
+     * <code>target</code> will be advanced by <code>getWidth() * getHeight()</code>. Bits above the stored bits
+     * are cleared (unsigned) or filled with the sign bit (signed), whether the pixel data is compressed or not.
+     *
+     * @param target
+     *         the buffer to read the samples into
+     *
+     * @throws IOException
+     *         if there is an exception reading from disk
+     */
+    public void readSamples(ShortBuffer target) throws IOException {
+        Raster raster;
+        DCMReadEvent event = new DCMReadEvent();
+        long startTime = System.nanoTime();
+
+        event.begin();
+
+        if (readSamplesDirect(target)) {
+            readFinished(event, startTime, width, height);
+            return;
+        }
+
+        raster = withReader(file, reader -> reader.readRaster(frameIndex, reader.getDefaultReadParam()));
+
+        int w = raster.getWidth();
+        int h = raster.getHeight();
+        int transferType = raster.getTransferType();
+
+        if (transferType == DataBuffer.TYPE_USHORT || transferType == DataBuffer.TYPE_SHORT) {
+            short[] row = new short[w];
+
+            for (int y = 0; y < h; y++) {
+                raster.getDataElements(0, y, w, 1, row);
+
+                for (int x = 0; x < w; x++) {
+                    target.put(stored(row[x]));
+                }
+            }
+        } else {
+            int[] row = new int[w];
+
+            for (int y = 0; y < h; y++) {
+                raster.getSamples(0, y, w, 1, 0, row);
+
+                for (int x = 0; x < w; x++) {
+                    target.put(stored(row[x]));
+                }
             }
         }
 
-        return awtImage;
+        readFinished(event, startTime, w, h);
     }
 
     /**
-     * Reads the AWT image from the <code>file</code>.
+     * Clears the bits of the given sample above the stored bits or fills them with its sign bit if the samples are
+     * signed, like {@link #readSamplesDirect(ShortBuffer)} does. Samples are returned unchanged if the number of
+     * stored bits is unknown.
+     *
+     * @param sample
+     *         the sample as decoded from the raster
+     *
+     * @return the stored value of the sample
+     */
+    private short stored(int sample) {
+
+        if (bitsStored < 1 || bitsStored >= 16) {
+            return (short) sample;
+        }
+
+        int shift = 16 - bitsStored;
+
+        return signed ? (short) ((short) (sample << shift) >> shift) : (short) (sample & ((1 << bitsStored) - 1));
+    }
+
+    /**
+     * Reads the stored pixel values of this image straight from the file into <code>target</code> if the pixel data
+     * is stored uncompressed as 16 bit little endian samples. Bits above the stored bits are cleared (unsigned) or
+     * filled with the sign bit (signed).
+     *
+     * @param target
+     *         the buffer to read the samples into
+     *
+     * @return whether the samples could be read directly, if false <code>target</code> is unchanged
      *
-     * @return
-     *      the resulting <code>BufferedImage</code>
      * @throws IOException
-     *      if there is an exception reading from disk
+     *         if there is an exception reading from disk
      */
-    private BufferedImage readAWTImage() throws IOException {
-        BufferedImage bufferedImage;
+    private boolean readSamplesDirect(ShortBuffer target) throws IOException {
+        findPixelData();
 
-        imageReader.setInput(new FileImageInputStream(file));
-        bufferedImage = imageReader.read(frameIndex, imageReader.getDefaultReadParam());
+        if (pixelDataPosition < 0) {
+            return false;
+        }
 
-        if (bufferedImage == null) {
-            System.err.println("Could not read a BufferedImage from an image." + file);
+        int frameBytes = 2 * width * height;
+        ByteBuffer buffer = ioBuffers.get();
+
+        if (buffer.capacity() < frameBytes) {
+            buffer = Buffers.allocateByteBuffer(frameBytes);
+            ioBuffers.set(buffer);
         }
 
-        return bufferedImage;
+        buffer.clear().limit(frameBytes);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, pixelDataPosition + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of the pixel data in " + file.getName());
+                }
+            }
+        }
+
+        buffer.flip();
+        ShortBuffer samples = buffer.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+
+        if (bitsStored == 16) {
+            target.put(samples);
+        } else if (signed) {
+            int shift = 16 - bitsStored;
+
+            while (samples.hasRemaining()) {
+                target.put((short) ((short) (samples.get() << shift) >> shift));
+            }
+        } else {
+            int mask = (1 << bitsStored) - 1;
+
+            while (samples.hasRemaining()) {
+                target.put((short) (samples.get() & mask));
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Determines whether the pixel data of this frame can be read directly and where it is located in the
+     * <code>file</code>. Only the first call has an effect.
+     */
+    private synchronized void findPixelData() {
+
+        if (pixelDataSearched) {
+            return;
+        }
+
+        readHeader();
+        pixelDataSearched = true;
+        pixelDataPosition = -1;
+
+        try (DicomInputStream in = new DicomInputStream(file)) {
+            Attributes attributes = in.readDataset(-1, Tag.PixelData);
+            String transferSyntax = in.getTransferSyntax();
+            long frameBytes = 2L * width * height;
+
+            boolean uncompressed = UID.ImplicitVRLittleEndian.equals(transferSyntax)
+                    || UID.ExplicitVRLittleEndian.equals(transferSyntax);
+            boolean plain16Bit = attributes.getInt(Tag.BitsAllocated, 0) == 16
+                    && attributes.getInt(Tag.SamplesPerPixel, 1) == 1;
+
+            bitsStored = attributes.getInt(Tag.BitsStored, 16);
+
+            boolean normalHighBit = bitsStored >= 1 && bitsStored <= 16
+                    && attributes.getInt(Tag.HighBit, bitsStored - 1) == bitsStored - 1;
+
+            if (in.tag() == Tag.PixelData && in.length() >= (frameIndex + 1) * frameBytes && frameBytes > 0
+                    && uncompressed && plain16Bit && normalHighBit) {
+                pixelDataPosition = in.getPosition() + frameIndex * frameBytes;
+            }
+        } catch (IOException e) {
+            System.err.println("Could not locate the pixel data of " + file.getName() + ". " + e);
+        }
+    }
+
+    /**
+     * Records a decoded frame in the <code>Metrics</code> and commits the given <code>DCMReadEvent</code> if it is
+     * enabled and its duration exceeds the configured threshold.
+     *
+     * @param event
+     *         the event covering the decoding
+     * @param startTime
+     *         the value of {@link System#nanoTime()} when the decoding started
+     * @param width
+     *         the width of the frame
+     * @param height
+     *         the height of the frame
+     */
+    private void readFinished(DCMReadEvent event, long startTime, int width, int height) {
+        Metrics.get().dicomRead(System.nanoTime() - startTime);
+
+        if (event.shouldCommit()) {
+            event.file = file.getPath();
+            event.frameIndex = frameIndex;
+            event.width = width;
+            event.height = height;
+            event.commit();
+        }
+    }
+
+    /**
+     * Reads the information about the pixel data of this image from the header of the <code>file</code>.
+     * Only the first call has an effect. Synchronized so that threads reading the header fields after calling this
+     * method see them completely, like <code>findPixelData()</code>.
+     */
+    private synchronized void readHeader() {
+
+        if (headerRead) {
+            return;
+        }
+
+        try {
+            Attributes attributes = withReader(file,
+                    reader -> ((DicomMetaData) reader.getStreamMetadata()).getAttributes());
+
+            String photometric = attributes.getString(Tag.PhotometricInterpretation, "MONOCHROME2");
+
+            width = attributes.getInt(Tag.Columns, 0);
+            height = attributes.getInt(Tag.Rows, 0);
+            signed = attributes.getInt(Tag.PixelRepresentation, 0) == 1;
+            rescaleSlope = attributes.getFloat(Tag.RescaleSlope, 1f);
+            rescaleIntercept = attributes.getFloat(Tag.RescaleIntercept, 0f);
+            windowCenter = attributes.getFloat(Tag.WindowCenter, Float.NaN);
+            windowWidth = attributes.getFloat(Tag.WindowWidth, Float.NaN);
+            linearWindow = !Float.isNaN(windowCenter) && windowWidth >= 1 && "MONOCHROME2".equals(photometric)
+                    && !attributes.containsValue(Tag.VOILUTSequence);
+        } catch (IOException e) {
+            System.err.println("Could not read the header of " + file.getName() + ". " + e);
+            rescaleSlope = 1f;
+            windowCenter = Float.NaN;
+            windowWidth = Float.NaN;
+        }
+
+        headerRead = true;
+    }
+
+    /**
+     * Returns the width of this image in pixels.
+     *
+     * @return the width
+     */
+    public int getWidth() {
+        readHeader();
+        return width;
+    }
+
+    /**
+     * Returns the height of this image in pixels.
+     *
+     * @return the height
+     */
+    public int getHeight() {
+        readHeader();
+        return height;
+    }
+
+    /**
+     * Returns whether the stored pixel values are signed.
+     *
+     * @return true iff the pixel values are signed
+     */
+    public boolean isSigned() {
+        readHeader();
+        return signed;
+    }
+
+    /**
+     * Returns the rescale slope of this image. The default is 1.
+     *
+     * @return the rescale slope
+     */
+    public float getRescaleSlope() {
+        readHeader();
+        return rescaleSlope;
+    }
+
+    /**
+     * Returns the rescale intercept of this image. The default is 0.
+     *
+     * @return the rescale intercept
+     */
+    public float getRescaleIntercept() {
+        readHeader();
+        return rescaleIntercept;
+    }
+
+    /**
+     * Returns the center of the first window given in the file or <code>NaN</code> if there is none.
+     *
+     * @return the window center
+     */
+    public float getWindowCenter() {
+        readHeader();
+        return windowCenter;
+    }
+
+    /**
+     * Returns the width of the first window given in the file or <code>NaN</code> if there is none.
+     *
+     * @return the window width
+     */
+    public float getWindowWidth() {
+        readHeader();
+        return windowWidth;
+    }
+
+    /**
+     * Returns whether the values of {@link #getImageRaster()} result from applying the rescale slope and intercept
+     * and then the linear window given by {@link #getWindowCenter()} and {@link #getWindowWidth()} to the stored
+     * pixel values.
+     *
+     * @return true iff the image is rendered using a linear window
+     */
+    public boolean hasLinearWindow() {
+        readHeader();
+        return linearWindow;
     }
 
     /**
      * Gets the raw image raster as a 2D Array of floats. Sub-arrays are rows of pixels.
+     * The image is read from disk on every call. If the image uses a linear window and its pixel data is stored
+     * uncompressed, the values are computed from the stored pixel values directly without rendering an image.
      *
      * @return
      *      the raster
      */
     public float[][] getImageRaster() {
-        Raster raster = getAWTImage().getRaster();
+
+        if (hasLinearWindow()) {
+            float[][] pixels = readWindowedRaster();
+
+            if (pixels != null) {
+                return pixels;
+            }
+        }
+
+        BufferedImage image;
+
+        try {
+            image = readAWTImage();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read an image. " + file, e);
+        }
+
+        Raster raster = image.getRaster();
 
         int w = raster.getWidth();
         int h = raster.getHeight();
 
-        float[][] pixels = new float[h][];
+        float[][] pixels = new float[h][w];
         for (int i = 0; i < h; i++) {
-            pixels[i] = raster.getPixels(0, i, w, 1, new float[w]);
+            raster.getPixels(0, i, w, 1, pixels[i]);
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Reads the stored pixel values directly from the file (see {@link #readSamplesDirect(ShortBuffer)}) and applies
+     * the rescale slope and intercept and the linear window like a <code>ShortVolume</code> does.
+     *
+     * @return the raster or <code>null</code> if the pixel data can not be read directly
+     */
+    private float[][] readWindowedRaster() {
+        DCMReadEvent event = new DCMReadEvent();
+        long startTime = System.nanoTime();
+        ShortBuffer samples = ShortBuffer.allocate(width * height); // only used during this call
+
+        event.begin();
+
+        try {
+            if (!readSamplesDirect(samples)) {
+                return null;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read an image. " + file, e);
         }
 
+        ShortVolume slice = new ShortVolume(new ShortBuffer[] {samples}, width, height, signed);
+        float[][] pixels = new float[height][width];
+
+        slice.setRescale(rescaleSlope, rescaleIntercept);
+        slice.setWindow(windowCenter, windowWidth);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y][x] = slice.value(x, y, 0);
+            }
+        }
+
+        readFinished(event, startTime, width, height);
+
         return pixels;
     }
 
@@ -157,10 +638,27 @@ public class DCMImage {
      * Resets the cached data this <code>DCMImage</code> holds.
      */
     public void reset() {
-        awtImage = null;
         fxImage = null;
     }
 
+    /**
+     * Returns the .dcm <code>File</code> containing this image.
+     *
+     * @return the file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the index of this image in its file.
+     *
+     * @return the frame index
+     */
+    public int getFrameIndex() {
+        return frameIndex;
+    }
+
     @Override
     public String toString() {
         return file.getName();
@@ -0,0 +1,300 @@
+package de.uni_passau.fim.seibt.v8.controller;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputStream;
+
+/**
+ * An index of the .dcm files in a directory that is stored in the file {@value #FILE_NAME} in the directory.
+ * For every file the index contains its modification time, size, number of frames, dimensions, series instance UID
+ * and slice position. Opening a directory only has to read the headers of files that are new or changed since the
+ * index was written, the headers are read in parallel. Files whose header could not be read are kept in the index
+ * without any frames, so they are only read again once they change.
+ */
+public class DirectoryIndex {
+
+    /**
+     * The name of the index file.
+     */
+    public static final String FILE_NAME = ".v8index";
+
+    private static final String HEADER = "# V8 directory index 1";
+
+    /**
+     * The information about a .dcm file stored in the index.
+     */
+    private static class Entry {
+
+        private String name;
+        private long lastModified;
+        private long size;
+        private int frames; // 0 if the header could not be read
+        private int width;
+        private int height;
+        private String seriesUID;
+        private double position; // NaN if the file contains no position
+
+        /**
+         * Returns whether this <code>Entry</code> still describes the given <code>File</code>.
+         *
+         * @param file
+         *         the file
+         *
+         * @return true iff the modification time and size of the file match
+         */
+        private boolean matches(File file) {
+            return file.lastModified() == lastModified && file.length() == size;
+        }
+
+        /**
+         * Returns the line representing this <code>Entry</code> in the index file.
+         *
+         * @return the line
+         */
+        private String toLine() {
+            return String.join("\t", name, Long.toString(lastModified), Long.toString(size), Integer.toString(frames),
+                    Integer.toString(width), Integer.toString(height), seriesUID, Double.toString(position));
+        }
+
+        /**
+         * Parses an <code>Entry</code> from a line of the index file.
+         *
+         * @param line
+         *         the line
+         *
+         * @return the <code>Entry</code> or <code>null</code> if the line is malformed
+         */
+        private static Entry fromLine(String line) {
+            String[] fields = line.split("\t", -1);
+
+            if (fields.length != 8) {
+                return null;
+            }
+
+            Entry entry = new Entry();
+
+            try {
+                entry.name = fields[0];
+                entry.lastModified = Long.parseLong(fields[1]);
+                entry.size = Long.parseLong(fields[2]);
+                entry.frames = Integer.parseInt(fields[3]);
+                entry.width = Integer.parseInt(fields[4]);
+                entry.height = Integer.parseInt(fields[5]);
+                entry.seriesUID = fields[6];
+                entry.position = Double.parseDouble(fields[7]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            return entry;
+        }
+    }
+
+    private DirectoryIndex() {}
+
+    /**
+     * Returns the <code>DCMImage</code>s contained in the .dcm files in <code>dir</code>. The index of the directory
+     * is created or brought up to date first. The images are sorted by series and then by slice position, images
+     * without a position follow the others of their series. Images with the same position are sorted by file name.
+     *
+     * @param dir
+     *         the directory
+     *
+     * @return the <code>DCMImage</code>s in the directory
+     */
+    public static List<DCMImage> getDCMImages(File dir) {
+        File[] dcmFiles = dir.listFiles((ignored, name) -> name.endsWith(".dcm"));
+
+        if (dcmFiles == null) {
+            return new ArrayList<>();
+        }
+
+        File indexFile = new File(dir, FILE_NAME);
+        Map<String, Entry> index = read(indexFile);
+
+        List<Entry> entries = Arrays.stream(dcmFiles).parallel().map(file -> {
+            Entry entry = index.get(file.getName());
+            return (entry != null && entry.matches(file)) ? entry : scan(file);
+        }).collect(Collectors.toList());
+
+        boolean changed = entries.size() != index.size() || entries.stream().anyMatch(e -> index.get(e.name) != e);
+
+        if (changed) {
+            write(indexFile, entries);
+        }
+
+        entries.sort(Comparator.comparing((Entry e) -> e.seriesUID)
+                               .thenComparingDouble(e -> e.position) // Double.compare sorts NaN last
+                               .thenComparing(e -> e.name));
+
+        List<DCMImage> images = new ArrayList<>();
+
+        for (Entry entry : entries) {
+            File file = new File(dir, entry.name);
+
+            for (int i = 0; i < entry.frames; i++) {
+                images.add(new DCMImage(file, i));
+            }
+        }
+
+        return images;
+    }
+
+    /**
+     * Reads the header of the given .dcm file.
+     *
+     * @param file
+     *         the .dcm file
+     *
+     * @return the <code>Entry</code> for the file, without any frames if its header could not be read
+     */
+    private static Entry scan(File file) {
+        Entry entry = new Entry();
+
+        entry.name = file.getName();
+        entry.lastModified = file.lastModified();
+        entry.size = file.length();
+
+        try (DicomInputStream in = new DicomInputStream(file)) {
+            Attributes attributes = in.readDataset(-1, Tag.PixelData);
+            String seriesUID = attributes.getString(Tag.SeriesInstanceUID, "");
+
+            entry.frames = attributes.getInt(Tag.NumberOfFrames, 1);
+            entry.width = attributes.getInt(Tag.Columns, 0);
+            entry.height = attributes.getInt(Tag.Rows, 0);
+            entry.seriesUID = seriesUID.replace('\t', ' ');
+            entry.position = position(attributes);
+        } catch (IOException e) {
+            System.err.println("Could not read the images in " + file.getName());
+            System.err.println(e);
+
+            entry.frames = 0;
+            entry.width = 0;
+            entry.height = 0;
+            entry.seriesUID = "";
+            entry.position = Double.NaN;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Returns the position of the slice described by the given attributes along the slice normal. The image
+     * position is projected on the normal of the image orientation if both are present, otherwise the slice location
+     * or the instance number is used.
+     *
+     * @param attributes
+     *         the attributes of the image
+     *
+     * @return the position or <code>NaN</code> if there is none
+     */
+    private static double position(Attributes attributes) {
+        double[] position = attributes.getDoubles(Tag.ImagePositionPatient);
+        double[] orientation = attributes.getDoubles(Tag.ImageOrientationPatient);
+
+        if (position != null && position.length == 3 && orientation != null && orientation.length == 6) {
+            double nx = orientation[1] * orientation[5] - orientation[2] * orientation[4];
+            double ny = orientation[2] * orientation[3] - orientation[0] * orientation[5];
+            double nz = orientation[0] * orientation[4] - orientation[1] * orientation[3];
+
+            return position[0] * nx + position[1] * ny + position[2] * nz;
+        }
+
+        double location = attributes.getDouble(Tag.SliceLocation, Double.NaN);
+
+        if (!Double.isNaN(location)) {
+            return location;
+        }
+
+        int instance = attributes.getInt(Tag.InstanceNumber, Integer.MIN_VALUE);
+
+        return (instance == Integer.MIN_VALUE) ? Double.NaN : instance;
+    }
+
+    /**
+     * Reads the entries of the given index file.
+     *
+     * @param indexFile
+     *         the index file
+     *
+     * @return the entries by file name, empty if the file does not exist or is not a valid index
+     */
+    private static Map<String, Entry> read(File indexFile) {
+        Map<String, Entry> index = new HashMap<>();
+
+        if (!indexFile.isFile()) {
+            return index;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+
+            if (!HEADER.equals(reader.readLine())) {
+                return index;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Entry entry = Entry.fromLine(line);
+
+                if (entry != null) {
+                    index.put(entry.name, entry);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read the index " + indexFile + ". " + e);
+            index.clear();
+        }
+
+        return index;
+    }
+
+    /**
+     * Writes the given entries to the index file. The file is replaced atomically where possible, so concurrent
+     * readers never see a partially written index.
+     *
+     * @param indexFile
+     *         the index file
+     * @param entries
+     *         the entries to write
+     */
+    private static void write(File indexFile, List<Entry> entries) {
+        Path target = indexFile.toPath();
+        Path temp = target.resolveSibling(FILE_NAME + ".tmp");
+
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.newLine();
+
+                for (Entry entry : entries) {
+                    writer.write(entry.toLine());
+                    writer.newLine();
+                }
+            }
+
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write the index " + indexFile + ". " + e);
+        }
+    }
+}
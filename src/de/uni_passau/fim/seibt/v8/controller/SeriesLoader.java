@@ -0,0 +1,221 @@
+package de.uni_passau.fim.seibt.v8.controller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javafx.concurrent.Task;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.FlatVolume;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.MCVolume;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.ShortVolume;
+
+/**
+ * A <code>Task</code> loading a series of <code>DCMImage</code>s into a <code>MCVolume</code>. The slices are
+ * decoded in parallel by one thread per available processor, each writing directly into its slice of the
+ * pre-sized volume. The progress is the fraction of slices loaded. Cancelling the <code>Task</code> stops the
+ * decoding after the slices currently being decoded. Loaded volumes are stored in the <code>VolumeCache</code> and
+ * taken from there when the same series is loaded again.
+ * <p>
+ * The stored samples are kept in a <code>ShortVolume</code> as long as all slices share their rescale and window,
+ * the headers are checked by the decoding threads. A series that turns out to be rescaled per slice is loaded again
+ * into a <code>FlatVolume</code>.
+ */
+class SeriesLoader extends Task<MCVolume> {
+
+    /**
+     * Loads a slice of the volume.
+     */
+    private interface SliceLoader {
+
+        /**
+         * Loads slice <code>z</code>.
+         *
+         * @param z
+         *         the slice index
+         *
+         * @throws Exception
+         *         if the slice could not be loaded
+         */
+        void load(int z) throws Exception;
+    }
+
+    /**
+     * Thrown while loading a series into a <code>ShortVolume</code> when a slice does not share the rescale and
+     * window of the first one.
+     */
+    private static class RescaleMismatchException extends Exception {
+
+        private RescaleMismatchException(int z) {
+            super("Slice " + z + " does not share the rescale and window of the first slice.");
+        }
+    }
+
+    private final List<DCMImage> images;
+
+    /**
+     * Constructs a new <code>SeriesLoader</code> loading the given <code>DCMImage</code>s. They must not be empty.
+     *
+     * @param images
+     *         the <code>DCMImage</code>s to load, in z order
+     */
+    SeriesLoader(List<DCMImage> images) {
+        this.images = new ArrayList<>(images);
+    }
+
+    @Override
+    protected MCVolume call() throws Exception {
+        DCMImage first = images.get(0);
+        MCVolume result = null;
+        String key = null;
+
+        try {
+            key = VolumeCache.key(images);
+            result = VolumeCache.get(key);
+
+            if (result != null) {
+                updateProgress(1, 1);
+                return result;
+            }
+        } catch (IOException e) {
+            System.err.println("Could not look up the series in the volume cache. " + e);
+        }
+
+        // the headers are checked by the loading threads, a mismatch falls back to a FlatVolume afterwards
+        if (first.hasLinearWindow()) {
+            ShortVolume volume = new ShortVolume(first.getWidth(), first.getHeight(), images.size(), first.isSigned());
+
+            volume.setRescale(first.getRescaleSlope(), first.getRescaleIntercept());
+            volume.setWindow(first.getWindowCenter(), first.getWindowWidth());
+
+            try {
+                load(z -> {
+                    DCMImage image = images.get(z);
+
+                    if (!sharesRescaleAndWindow(image, first)) {
+                        throw new RescaleMismatchException(z);
+                    }
+
+                    image.readSamples(volume.slice(z));
+                }, 0);
+
+                result = volume;
+            } catch (RescaleMismatchException e) {
+                result = null;
+            }
+        }
+
+        if (result == null) {
+            float[][] raster = first.getImageRaster();
+            FlatVolume volume = new FlatVolume(raster[0].length, raster.length, images.size());
+
+            volume.setSlice(0, raster);
+            load(z -> volume.setSlice(z, images.get(z).getImageRaster()), 1);
+
+            result = volume;
+        }
+
+        if (key != null) {
+            VolumeCache.put(key, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns whether the given image uses a linear window and shares the size, signedness, rescale slope and
+     * intercept and the window of the first one, so its stored samples can be kept in a <code>ShortVolume</code> that
+     * applies the rescale and window of the first image to all slices. Series rescaled per slice, as is common for
+     * PET and some CT series, have to be loaded into a <code>FlatVolume</code> instead.
+     *
+     * @param image
+     *         the image to check
+     * @param first
+     *         the first image of the series
+     *
+     * @return true iff the image can be loaded into the <code>ShortVolume</code> of the series
+     */
+    private static boolean sharesRescaleAndWindow(DCMImage image, DCMImage first) {
+        return image.hasLinearWindow()
+                && image.getWidth() == first.getWidth() && image.getHeight() == first.getHeight()
+                && image.isSigned() == first.isSigned()
+                && Float.compare(image.getRescaleSlope(), first.getRescaleSlope()) == 0
+                && Float.compare(image.getRescaleIntercept(), first.getRescaleIntercept()) == 0
+                && Float.compare(image.getWindowCenter(), first.getWindowCenter()) == 0
+                && Float.compare(image.getWindowWidth(), first.getWindowWidth()) == 0;
+    }
+
+    /**
+     * Loads the slices from <code>start</code> on in parallel using the given <code>SliceLoader</code>. The slices
+     * are handed out to the threads in z order, so files are read roughly in the order they are stored in.
+     *
+     * @param loader
+     *         the <code>SliceLoader</code> to use
+     * @param start
+     *         the index of the first slice to load
+     *
+     * @throws Exception
+     *         if a slice could not be loaded or the <code>Task</code> was cancelled
+     */
+    private void load(SliceLoader loader, int start) throws Exception {
+        int numSlices = images.size();
+        int numThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), numSlices - start));
+        AtomicInteger next = new AtomicInteger(start);
+        AtomicInteger loaded = new AtomicInteger(start);
+        List<Callable<Void>> workers = new ArrayList<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads, r -> {
+            Thread thread = new Thread(r, SeriesLoader.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (int i = 0; i < numThreads; i++) {
+            workers.add(() -> {
+                int z;
+
+                while (!isCancelled() && (z = next.getAndIncrement()) < numSlices) {
+                    loader.load(z);
+                    updateProgress(loaded.incrementAndGet(), numSlices);
+                }
+
+                return null;
+            });
+        }
+
+        updateProgress(start, numSlices);
+
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+
+            for (Callable<Void> worker : workers) {
+                results.add(executor.submit(worker));
+            }
+
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    next.set(numSlices); // stop the other workers
+
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+
+                    throw e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (isCancelled()) {
+            throw new InterruptedException("Loading the series was cancelled.");
+        }
+    }
+}
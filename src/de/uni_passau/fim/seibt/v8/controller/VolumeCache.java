@@ -0,0 +1,392 @@
+package de.uni_passau.fim.seibt.v8.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.FlatVolume;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.MCVolume;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.ShortVolume;
+
+/**
+ * A cache of decoded volumes on disk. Every entry is a file containing a 64 byte header followed by the raw little
+ * endian samples of a <code>ShortVolume</code> or the values of a <code>FlatVolume</code>, slice by slice. Entries
+ * are keyed by a hash of the contents of the .dcm files a volume was loaded from and are memory mapped when they are
+ * read, so a cached volume is neither decoded nor copied to the heap.
+ * <p>
+ * The cache directory is given by the system property {@value #DIR_PROPERTY} (default <code>~/.v8/cache</code>),
+ * its maximum size in bytes by {@value #QUOTA_PROPERTY} (default 4 GiB). When the quota is exceeded, the least
+ * recently used entries are deleted.
+ */
+public class VolumeCache {
+
+    /**
+     * The system property setting the cache directory.
+     */
+    public static final String DIR_PROPERTY = "v8.cache.dir";
+
+    /**
+     * The system property setting the maximum size of the cache in bytes.
+     */
+    public static final String QUOTA_PROPERTY = "v8.cache.quota";
+
+    private static final int MAGIC = 0x43563856; // "V8VC" in little endian
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final byte SHORT_TYPE = 'S';
+    private static final byte FLOAT_TYPE = 'F';
+    private static final String SUFFIX = ".v8vol";
+
+    private static final File dir = new File(System.getProperty(DIR_PROPERTY,
+            System.getProperty("user.home") + File.separator + ".v8" + File.separator + "cache"));
+    private static final long quota = Long.getLong(QUOTA_PROPERTY, 4L << 30);
+
+    /**
+     * The hashes of the files hashed in this session by path, modification time and size.
+     */
+    private static final Map<String, byte[]> fileHashes = new ConcurrentHashMap<>();
+
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, VolumeCache.class.getSimpleName());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private VolumeCache() {}
+
+    /**
+     * Computes the key of the volume loaded from the given images. The key is a SHA-256 hash over the contents of
+     * their files and their frame indices, the files are hashed in parallel.
+     *
+     * @param images
+     *         the images of the volume, in z order
+     *
+     * @return the key
+     *
+     * @throws IOException
+     *         if a file can not be read
+     */
+    public static String key(List<DCMImage> images) throws IOException {
+        MessageDigest digest = sha256();
+
+        try {
+            // fill the hashes in parallel, they are combined in z order below
+            images.parallelStream().map(DCMImage::getFile).distinct().forEach(file -> {
+                try {
+                    hash(file);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        } catch (RuntimeException e) {
+
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw e;
+        }
+
+        for (DCMImage image : images) {
+            digest.update(hash(image.getFile()));
+            digest.update(ByteBuffer.allocate(4).putInt(image.getFrameIndex()).array());
+        }
+
+        StringBuilder key = new StringBuilder();
+
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Returns the SHA-256 hash of the contents of the given file. Hashes are remembered for the session as long as
+     * the modification time and size of the file do not change.
+     *
+     * @param file
+     *         the file to hash
+     *
+     * @return the hash
+     *
+     * @throws IOException
+     *         if the file can not be read
+     */
+    private static byte[] hash(File file) throws IOException {
+        String id = file.getAbsolutePath() + '\0' + file.lastModified() + '\0' + file.length();
+        byte[] hash = fileHashes.get(id);
+
+        if (hash != null) {
+            return hash;
+        }
+
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[1 << 16];
+
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int read;
+
+            while ((read = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        hash = digest.digest();
+        fileHashes.put(id, hash);
+
+        return hash;
+    }
+
+    /**
+     * Returns a new SHA-256 <code>MessageDigest</code>.
+     *
+     * @return the <code>MessageDigest</code>
+     */
+    private static MessageDigest sha256() {
+
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    /**
+     * Returns the cached volume with the given key. The returned volume is backed by a read-only memory mapping of
+     * the cache entry.
+     *
+     * @param key
+     *         the key of the volume
+     *
+     * @return the volume or <code>null</code> if there is no valid entry for the key
+     */
+    public static MCVolume get(String key) {
+        File file = new File(dir, key + SUFFIX);
+
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    return null;
+                }
+            }
+
+            header.flip();
+
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return null;
+            }
+
+            byte type = header.get();
+            boolean signed = header.get() != 0;
+            header.getShort();
+            int xSize = header.getInt();
+            int ySize = header.getInt();
+            int zSize = header.getInt();
+            float slope = header.getFloat();
+            float intercept = header.getFloat();
+            float windowCenter = header.getFloat();
+            float windowWidth = header.getFloat();
+            long sampleBytes = (type == SHORT_TYPE) ? 2 : 4;
+
+            if (channel.size() != HEADER_BYTES + sampleBytes * xSize * ySize * zSize) {
+                return null;
+            }
+
+            MCVolume volume;
+
+            if (type == SHORT_TYPE) {
+                ShortBuffer[] slices = new ShortBuffer[zSize];
+                long sliceBytes = 2L * xSize * ySize;
+
+                for (int z = 0; z < zSize; z++) {
+                    slices[z] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + z * sliceBytes, sliceBytes)
+                                       .order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+                }
+
+                ShortVolume shortVolume = new ShortVolume(slices, xSize, ySize, signed);
+
+                shortVolume.setRescale(slope, intercept);
+
+                if (!Float.isNaN(windowCenter)) {
+                    shortVolume.setWindow(windowCenter, windowWidth);
+                }
+
+                volume = shortVolume;
+            } else if (type == FLOAT_TYPE) {
+                volume = FlatVolume.map(channel, HEADER_BYTES, ByteOrder.LITTLE_ENDIAN, xSize, ySize, zSize);
+            } else {
+                return null;
+            }
+
+            file.setLastModified(System.currentTimeMillis()); // marks the entry as recently used
+
+            return volume;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Could not read the cached volume " + file.getName() + ". " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the given volume to the cache on a background thread. Only <code>ShortVolume</code>s and
+     * <code>FlatVolume</code>s are cached. The least recently used entries are deleted afterwards if the cache
+     * exceeds its quota.
+     *
+     * @param key
+     *         the key of the volume
+     * @param volume
+     *         the volume to cache, must not be changed anymore
+     */
+    public static void put(String key, MCVolume volume) {
+
+        if (!(volume instanceof ShortVolume) && !(volume instanceof FlatVolume)) {
+            return;
+        }
+
+        writer.execute(() -> {
+            try {
+                write(key, volume);
+                evict();
+            } catch (IOException e) {
+                System.err.println("Could not cache a volume in " + dir + ". " + e);
+            }
+        });
+    }
+
+    /**
+     * Writes the cache entry for the given volume.
+     *
+     * @param key
+     *         the key of the volume
+     * @param volume
+     *         the <code>ShortVolume</code> or <code>FlatVolume</code> to write
+     *
+     * @throws IOException
+     *         if the entry can not be written
+     */
+    private static void write(String key, MCVolume volume) throws IOException {
+        Files.createDirectories(dir.toPath());
+
+        Path target = new File(dir, key + SUFFIX).toPath();
+        Path temp = Files.createTempFile(dir.toPath(), key, ".tmp");
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        int sliceSize = volume.xSize() * volume.ySize();
+
+        header.putInt(MAGIC).putInt(VERSION);
+
+        if (volume instanceof ShortVolume) {
+            ShortVolume shortVolume = (ShortVolume) volume;
+
+            header.put(SHORT_TYPE).put((byte) (shortVolume.isSigned() ? 1 : 0)).putShort((short) 0);
+            header.putInt(volume.xSize()).putInt(volume.ySize()).putInt(volume.zSize());
+            header.putFloat(shortVolume.getRescaleSlope()).putFloat(shortVolume.getRescaleIntercept());
+
+            if (shortVolume.isWindowed()) {
+                header.putFloat(shortVolume.getWindowCenter()).putFloat(shortVolume.getWindowWidth());
+            } else {
+                header.putFloat(Float.NaN).putFloat(Float.NaN);
+            }
+        } else {
+            header.put(FLOAT_TYPE).put((byte) 0).putShort((short) 0);
+            header.putInt(volume.xSize()).putInt(volume.ySize()).putInt(volume.zSize());
+            header.putFloat(1).putFloat(0).putFloat(Float.NaN).putFloat(Float.NaN);
+        }
+
+        header.clear();
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            ByteBuffer slice = ByteBuffer.allocateDirect(sliceSize * 4).order(ByteOrder.LITTLE_ENDIAN);
+
+            writeFully(channel, header);
+
+            for (int z = 0; z < volume.zSize(); z++) {
+                slice.clear();
+
+                if (volume instanceof ShortVolume) {
+                    slice.asShortBuffer().put(((ShortVolume) volume).slice(z));
+                    slice.limit(sliceSize * 2);
+                } else {
+                    FloatBuffer values = ((FlatVolume) volume).slice(z);
+                    slice.asFloatBuffer().put(values);
+                    slice.limit(sliceSize * 4);
+                }
+
+                writeFully(channel, slice);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes all remaining bytes of <code>buffer</code> to <code>channel</code>.
+     *
+     * @param channel
+     *         the channel to write to
+     * @param buffer
+     *         the bytes to write
+     *
+     * @throws IOException
+     *         if the bytes can not be written
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache does not exceed its quota anymore.
+     */
+    private static void evict() {
+        File[] entries = dir.listFiles((ignored, name) -> name.endsWith(SUFFIX));
+
+        if (entries == null) {
+            return;
+        }
+
+        long size = 0;
+
+        for (File entry : entries) {
+            size += entry.length();
+        }
+
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+
+        for (int i = 0; i < entries.length && size > quota; i++) {
+            long length = entries[i].length();
+
+            if (entries[i].delete()) {
+                size -= length;
+            }
+        }
+    }
+}
@@ -6,10 +6,16 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.SynchronousQueue;
 import javax.imageio.ImageIO;
 
+import de.uni_passau.fim.seibt.v8.model.mc_alg.IncrementalExtractor;
 import de.uni_passau.fim.seibt.v8.model.mc_alg.MCRunner;
 import de.uni_passau.fim.seibt.v8.model.mc_alg.Mesh;
 import org.lwjgl.BufferUtils;
@@ -26,7 +32,9 @@ import static org.lwjgl.opengl.GL15.GL_ARRAY_BUFFER;
 import static org.lwjgl.opengl.GL15.GL_ELEMENT_ARRAY_BUFFER;
 
 /**
- * A window showing the mesh resulting from an <code>MCRunner</code> instance.
+ * A window showing the mesh resulting from an <code>MCRunner</code> instance or the chunks of the mesh maintained by
+ * an <code>IncrementalExtractor</code>. Every chunk has its own buffer objects, so only the changed chunks are
+ * uploaded after an update.
  * Capabilities include displaying a coordinate system, the unit cubes of the Marching Cubes algorithm, displaying
  * the mesh as lines or filled polygons and enabling/disabling lighting. Screenshots will be placed in a directory
  * called 'screenshots' in the current working directory. Keybindings are as follows:<br><br>
@@ -80,9 +88,12 @@ public class MeshView3D {
     }
 
     private SynchronousQueue<Mesh> newBuffer;
+    private Queue<Map<Integer, Mesh>> newChunks;
 
     private FloatBuffer lightPosition;
-    private MCRunner mcRunner;
+    private MCRunner mcRunner;             // null unless the mesh comes from the mcRunner
+    private IncrementalExtractor extractor; // null unless the mesh comes from the extractor
+    private Callable<Mesh> loader;          // non null if a stored mesh is shown
     private Camera camera;
     private final File scDir; // the screenshot directory
 
@@ -91,6 +102,10 @@ public class MeshView3D {
     private int normalVBOID;  // Vertex Buffer Object ID (Normals)
     private int indicesCount; // how many indices should be drawn (the triangles of the mesh)
 
+    // the Vertex Buffer Object IDs (vertices, normals, indices) and the number of indices of every chunk
+    private Map<Integer, int[]> chunkBuffers;
+    private int chunkIndicesCount; // the number of indices of all chunks
+
     private boolean showNormalLines;
     private boolean showCubes;
     private boolean showCoordinateSystem;
@@ -113,6 +128,40 @@ public class MeshView3D {
      * @param mcRunner the <code>MCRunner</code> for this <code>MeshView3D</code>
      */
     public MeshView3D(MCRunner mcRunner) {
+        this();
+        this.mcRunner = mcRunner;
+        this.mcRunner.setOnMeshFinished(this::receiveUpdate);
+    }
+
+    /**
+     * Constructs a new <code>MeshView3D</code> window that will show the chunks of the given <code>extractor</code>.
+     * {@link #show()} extracts all chunks, later calls of {@link IncrementalExtractor#update()} update the window.
+     * Note that this constructor must be called in the same thread as the {@link #show()} method.
+     *
+     * @param extractor the <code>IncrementalExtractor</code> for this <code>MeshView3D</code>
+     */
+    public MeshView3D(IncrementalExtractor extractor) {
+        this();
+        this.extractor = extractor;
+        this.extractor.setOnChunksChanged(this::receiveChunks);
+    }
+
+    /**
+     * Constructs a new <code>MeshView3D</code> window that will show the <code>Mesh</code> returned by the given
+     * <code>loader</code>. {@link #show()} calls the <code>loader</code> in a new thread.
+     * Note that this constructor must be called in the same thread as the {@link #show()} method.
+     *
+     * @param loader the <code>Callable</code> loading the <code>Mesh</code> for this <code>MeshView3D</code>
+     */
+    public MeshView3D(Callable<Mesh> loader) {
+        this();
+        this.loader = loader;
+    }
+
+    /**
+     * Initializes the window and the OpenGL state.
+     */
+    private MeshView3D() {
 
         try {
             initDisplay();
@@ -131,10 +180,10 @@ public class MeshView3D {
         float farClip = 10000;
 
         this.newBuffer = new SynchronousQueue<>();
+        this.newChunks = new ConcurrentLinkedQueue<>();
+        this.chunkBuffers = new HashMap<>();
         this.camera = new Camera(fov, aspectRatio, nearClip, farClip);
         this.camera.initGL();
-        this.mcRunner = mcRunner;
-        this.mcRunner.setOnMeshFinished(this::receiveUpdate);
         this.showNormalLines = false;
         this.showCubes = false;
         this.showCoordinateSystem = false;
@@ -251,9 +300,24 @@ public class MeshView3D {
      * <code>GL_V8</code>.
      */
     public void show() {
-
-        Thread runner = new Thread(mcRunner);
-        runner.setName(mcRunner.getClass().getSimpleName());
+        Thread runner;
+
+        if (mcRunner != null) {
+            runner = new Thread(mcRunner);
+            runner.setName(mcRunner.getClass().getSimpleName());
+        } else if (extractor != null) {
+            runner = new Thread(extractor::extractAll);
+            runner.setName(extractor.getClass().getSimpleName());
+        } else {
+            runner = new Thread(() -> {
+                try {
+                    receiveUpdate(loader.call());
+                } catch (Exception e) {
+                    System.err.println("Could not load the mesh. " + e.getMessage());
+                }
+            });
+            runner.setName("MeshLoader");
+        }
 
         runner.start();
         while (!Display.isCloseRequested()) {
@@ -291,6 +355,17 @@ public class MeshView3D {
         glColor3f(1f, 1f, 1f);
         glDrawElements(GL_TRIANGLES, indicesCount, GL_UNSIGNED_INT, 0);
 
+        for (int[] chunk : chunkBuffers.values()) {
+            glBindBufferARB(GL_ARRAY_BUFFER, chunk[0]);
+            glVertexPointer(3, GL_FLOAT, 24, 0);
+
+            glBindBufferARB(GL_ARRAY_BUFFER, chunk[1]);
+            glNormalPointer(GL_FLOAT, 0, 0);
+
+            glBindBufferARB(GL_ELEMENT_ARRAY_BUFFER, chunk[2]);
+            glDrawElements(GL_TRIANGLES, chunk[3], GL_UNSIGNED_INT, 0);
+        }
+
         if (showNormalLines) {
             drawNormalLines();
         }
@@ -421,6 +496,12 @@ public class MeshView3D {
         glColor3f(0, 0, 1f);
         glDrawArrays(GL_LINES, 0, indicesCount);
 
+        for (int[] chunk : chunkBuffers.values()) {
+            glBindBufferARB(GL_ARRAY_BUFFER, chunk[0]);
+            glVertexPointer(3, GL_FLOAT, 0, 0);
+            glDrawArrays(GL_LINES, 0, chunk[3]);
+        }
+
         if (lighting) {
             glEnable(GL_LIGHTING);
         }
@@ -440,10 +521,78 @@ public class MeshView3D {
     }
 
     /**
-     * Checks whether a new <code>Mesh</code> was produced by the <code>MCRunner</code> and if so buffers the
-     * received data.
+     * This method will be called by the <code>IncrementalExtractor</code> when chunks of the mesh changed.
+     *
+     * @param chunks the changed chunks, <code>null</code> values mark removed chunks
+     */
+    private void receiveChunks(Map<Integer, Mesh> chunks) {
+        newChunks.add(new HashMap<>(chunks));
+    }
+
+    /**
+     * Uploads the chunks changed since the last call, deleting the buffers of removed chunks.
+     */
+    private void updateChunks() {
+        Map<Integer, Mesh> chunks;
+        boolean changed = false;
+
+        while ((chunks = newChunks.poll()) != null) {
+            changed = true;
+
+            for (Map.Entry<Integer, Mesh> entry : chunks.entrySet()) {
+                Mesh mesh = entry.getValue();
+                int[] buffers = chunkBuffers.get(entry.getKey());
+
+                if (buffers != null) {
+                    chunkIndicesCount -= buffers[3];
+                }
+
+                if (mesh == null) {
+
+                    if (buffers != null) {
+                        glDeleteBuffersARB(buffers[0]);
+                        glDeleteBuffersARB(buffers[1]);
+                        glDeleteBuffersARB(buffers[2]);
+                        chunkBuffers.remove(entry.getKey());
+                    }
+
+                    continue;
+                }
+
+                if (buffers == null) {
+                    buffers = new int[] {glGenBuffersARB(), glGenBuffersARB(), glGenBuffersARB(), 0};
+                    chunkBuffers.put(entry.getKey(), buffers);
+                }
+
+                buffers[3] = mesh.getNumIndices();
+                chunkIndicesCount += buffers[3];
+
+                glBindBufferARB(GL_ARRAY_BUFFER, buffers[0]);
+                glBufferDataARB(GL_ARRAY_BUFFER, mesh.getVertices(), GL_STATIC_DRAW_ARB);
+
+                glBindBufferARB(GL_ARRAY_BUFFER, buffers[1]);
+                glBufferDataARB(GL_ARRAY_BUFFER, mesh.getNormals(), GL_STATIC_DRAW_ARB);
+
+                glBindBufferARB(GL_ELEMENT_ARRAY_BUFFER, buffers[2]);
+                glBufferDataARB(GL_ELEMENT_ARRAY_BUFFER, mesh.getIndices(), GL_STATIC_DRAW_ARB);
+            }
+        }
+
+        if (changed) {
+            glBindBufferARB(GL_ARRAY_BUFFER, 0);
+            glBindBufferARB(GL_ELEMENT_ARRAY_BUFFER, 0);
+
+            updateTitle();
+        }
+    }
+
+    /**
+     * Checks whether a new <code>Mesh</code> was produced by the <code>MCRunner</code> or chunks were changed by the
+     * <code>IncrementalExtractor</code> and if so buffers the received data.
      */
     private void update() {
+        updateChunks();
+
         Mesh change = newBuffer.poll();
 
         if (change != null) {
@@ -516,9 +665,15 @@ public class MeshView3D {
                     showNormalLines = !showNormalLines;
                     break;
                 case Keyboard.KEY_PERIOD:
-                    mcRunner.continueRun();
+                    if (mcRunner != null) {
+                        mcRunner.continueRun();
+                    }
                     break;
                 case Keyboard.KEY_P:
+                    if (mcRunner == null) {
+                        break;
+                    }
+
                     stopping = mcRunner.isPausing();
 
                     if (stopping) {
@@ -545,8 +700,8 @@ public class MeshView3D {
     private void updateTitle() {
         String format = "%s - Triangles: %d | Polygon Mode: %s | Lighting: %s | Cull Face: %s | " +
                 "Coordinate System: %b | Cubes: %b | Normal Lines: %b | Stopped: %b";
-        Display.setTitle(String.format(format, TITLE, indicesCount / 3, polyModeDesc, lightingDesc, cullFaceDesc,
-                showCoordinateSystem, showCubes, showNormalLines, stopping));
+        Display.setTitle(String.format(format, TITLE, (indicesCount + chunkIndicesCount) / 3, polyModeDesc,
+                lightingDesc, cullFaceDesc, showCoordinateSystem, showCubes, showNormalLines, stopping));
     }
 
     /**
@@ -633,5 +788,13 @@ public class MeshView3D {
         glDeleteBuffersARB(vertexVBOID);
         glDeleteBuffersARB(indexVBOID);
         glDeleteBuffersARB(normalVBOID);
+
+        for (int[] chunk : chunkBuffers.values()) {
+            glDeleteBuffersARB(chunk[0]);
+            glDeleteBuffersARB(chunk[1]);
+            glDeleteBuffersARB(chunk[2]);
+        }
+
+        chunkBuffers.clear();
     }
 }
@@ -0,0 +1,248 @@
+package de.uni_passau.fim.seibt.v8.model.mc_alg;
+
+import java.nio.FloatBuffer;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.BrickedVolume;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.MCVolume;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.SubVolume;
+
+import static de.uni_passau.fim.seibt.v8.model.mc_alg.MCRunner.Type.COMPLETE;
+
+/**
+ * Extracts the mesh of a <code>BrickedVolume</code> as one chunk per brick and keeps it up to date when values of the
+ * volume change. Chunk i contains the triangles of the cubes whose vertex 0 lies in the brick with the linear index
+ * i (see {@link BrickedVolume#takeDirtyBricks()}). Each chunk is extracted by its own <code>MCRunner</code> over a
+ * <code>SubVolume</code> covering the brick and a halo of one cube in every direction, so the chunks are extracted in
+ * parallel and fit together seamlessly.
+ * <p>
+ * A changed value affects the cubes it is a corner of and, through the gradients, the normals of the cubes next to
+ * them. {@link #update()} therefore extracts the dirty bricks and their neighbours again, the time it takes depends
+ * on the number of changed bricks instead of the size of the volume.
+ */
+public class IncrementalExtractor {
+
+    private final BrickedVolume volume;
+    private final float level;
+    private final int gridSize;
+    private final Map<Integer, Mesh> chunks;
+
+    private Consumer<Map<Integer, Mesh>> chunkConsumer; // will be called with the changed chunks after every update
+
+    /**
+     * Constructs a new <code>IncrementalExtractor</code> for the given volume.
+     *
+     * @param volume
+     *         the volume to extract the mesh of
+     * @param level
+     *         the level for the Marching Cubes algorithm
+     * @param gridSize
+     *         the grid size (that is the x/y/z dimensions of the cubes), must be a power of 2 not greater than the
+     *         brick size of the volume
+     *
+     * @throws NullPointerException
+     *         if <code>volume</code> is <code>null</code>
+     * @throws IllegalArgumentException
+     *         if <code>level</code> is smaller than 0 or <code>gridSize</code> is invalid
+     */
+    public IncrementalExtractor(BrickedVolume volume, float level, int gridSize) {
+        Objects.requireNonNull(volume, "volume must not be null!");
+
+        if (!(level >= 0)) {
+            throw new IllegalArgumentException("level must be greater or equal to 0!");
+        }
+
+        if (gridSize < 1 || gridSize > volume.brickSize() || Integer.bitCount(gridSize) != 1) {
+            throw new IllegalArgumentException("gridSize must be a power of 2 not greater than the brick size!");
+        }
+
+        this.volume = volume;
+        this.level = level;
+        this.gridSize = gridSize;
+        this.chunks = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Sets the method that will be called with the changed chunks after {@link #extractAll()} and
+     * {@link #update()}. The <code>Map</code> maps the index of every changed chunk to its new <code>Mesh</code> or to
+     * <code>null</code> if the chunk does not contain any triangles anymore.
+     *
+     * @param chunkConsumer
+     *         the <code>Consumer</code> that should accept the changed chunks
+     */
+    public void setOnChunksChanged(Consumer<Map<Integer, Mesh>> chunkConsumer) {
+        this.chunkConsumer = chunkConsumer;
+    }
+
+    /**
+     * Returns the current chunks of the mesh. Chunks without triangles are not contained.
+     *
+     * @return an unmodifiable view of the chunks
+     */
+    public Map<Integer, Mesh> getChunks() {
+        return Collections.unmodifiableMap(chunks);
+    }
+
+    /**
+     * Extracts the chunks of all bricks. Bricks marked as dirty in the volume are marked as clean.
+     *
+     * @return the changed chunks, see {@link #setOnChunksChanged(Consumer)}
+     */
+    public synchronized Map<Integer, Mesh> extractAll() {
+        BitSet all = new BitSet();
+
+        volume.takeDirtyBricks();
+        all.set(0, volume.xBricks() * volume.yBricks() * volume.zBricks());
+
+        return extract(all);
+    }
+
+    /**
+     * Extracts the chunks of the bricks changed since the last call of this method or {@link #extractAll()} and of
+     * their neighbours.
+     *
+     * @return the changed chunks, see {@link #setOnChunksChanged(Consumer)}
+     */
+    public synchronized Map<Integer, Mesh> update() {
+        BitSet dirty = volume.takeDirtyBricks();
+        BitSet affected = new BitSet();
+        int xBricks = volume.xBricks();
+        int yBricks = volume.yBricks();
+        int zBricks = volume.zBricks();
+
+        for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+            int bx = i % xBricks;
+            int by = (i / xBricks) % yBricks;
+            int bz = i / (xBricks * yBricks);
+
+            for (int z = Math.max(0, bz - 1); z <= Math.min(zBricks - 1, bz + 1); z++) {
+                for (int y = Math.max(0, by - 1); y <= Math.min(yBricks - 1, by + 1); y++) {
+                    for (int x = Math.max(0, bx - 1); x <= Math.min(xBricks - 1, bx + 1); x++) {
+                        affected.set((z * yBricks + y) * xBricks + x);
+                    }
+                }
+            }
+        }
+
+        return extract(affected);
+    }
+
+    /**
+     * Extracts the chunks of the given bricks in parallel and notifies the <code>chunkConsumer</code>.
+     *
+     * @param bricks
+     *         the linear indices of the bricks to extract
+     *
+     * @return the changed chunks
+     */
+    private Map<Integer, Mesh> extract(BitSet bricks) {
+        Map<Integer, Mesh> changed = Collections.synchronizedMap(new HashMap<>());
+
+        bricks.stream().parallel().forEach(i -> {
+            Mesh mesh = extract(i);
+
+            if (mesh == null) {
+
+                if (chunks.remove(i) != null) {
+                    changed.put(i, null);
+                }
+            } else {
+                chunks.put(i, mesh);
+                changed.put(i, mesh);
+            }
+        });
+
+        if (chunkConsumer != null && !changed.isEmpty()) {
+            chunkConsumer.accept(changed);
+        }
+
+        return changed;
+    }
+
+    /**
+     * Extracts the chunk of the brick with the given linear index.
+     *
+     * @param i
+     *         the linear index of the brick
+     *
+     * @return the <code>Mesh</code> of the chunk or <code>null</code> if it does not contain any triangles
+     */
+    private Mesh extract(int i) {
+        int brickSize = volume.brickSize();
+        int x0 = (i % volume.xBricks()) * brickSize;
+        int y0 = ((i / volume.xBricks()) % volume.yBricks()) * brickSize;
+        int z0 = (i / (volume.xBricks() * volume.yBricks())) * brickSize;
+
+        return extractBrick(volume, x0, y0, z0, brickSize, level, gridSize);
+    }
+
+    /**
+     * Extracts the triangles of the cubes whose vertex 0 lies in the brick of the given size at (x0, y0, z0) of
+     * the given volume. The positions of the returned <code>Mesh</code> are in the coordinates of the volume.
+     *
+     * @param volume
+     *         the volume
+     * @param x0
+     *         the x coordinate of the brick, a multiple of <code>gridSize</code>
+     * @param y0
+     *         the y coordinate of the brick, a multiple of <code>gridSize</code>
+     * @param z0
+     *         the z coordinate of the brick, a multiple of <code>gridSize</code>
+     * @param brickSize
+     *         the x/y/z dimension of the brick, a multiple of <code>gridSize</code>
+     * @param level
+     *         the level for the Marching Cubes algorithm
+     * @param gridSize
+     *         the grid size
+     *
+     * @return the <code>Mesh</code> or <code>null</code> if the brick does not contain any triangles
+     */
+    static Mesh extractBrick(MCVolume volume, int x0, int y0, int z0, int brickSize, float level, int gridSize) {
+
+        // the cubes of a brick reach gridSize positions into the next brick
+        SubVolume brick = new SubVolume(volume, x0, y0, z0,
+                Math.min(brickSize + gridSize, volume.xSize() - x0),
+                Math.min(brickSize + gridSize, volume.ySize() - y0),
+                Math.min(brickSize + gridSize, volume.zSize() - z0));
+
+        MCRunner runner = new MCRunner(brick, level, gridSize, COMPLETE);
+        Mesh[] mesh = new Mesh[1];
+
+        runner.setOnMeshFinished(m -> mesh[0] = m);
+        runner.run();
+
+        if (mesh[0] != null) {
+            translate(mesh[0].getVertices(), x0, y0, z0);
+        }
+
+        return mesh[0];
+    }
+
+    /**
+     * Moves the positions in the given vertices buffer (see {@link Mesh#getVertices()}) from the coordinates of a
+     * <code>SubVolume</code> to the coordinates of the volume.
+     *
+     * @param vertices
+     *         the buffer containing the position triples
+     * @param x0
+     *         the x coordinate of the <code>SubVolume</code>
+     * @param y0
+     *         the y coordinate of the <code>SubVolume</code>
+     * @param z0
+     *         the z coordinate of the <code>SubVolume</code>
+     */
+    private static void translate(FloatBuffer vertices, int x0, int y0, int z0) {
+
+        for (int i = 0; i + 2 < vertices.limit(); i += 3) {
+            vertices.put(i, vertices.get(i) + x0);
+            vertices.put(i + 1, vertices.get(i + 1) + y0);
+            vertices.put(i + 2, vertices.get(i + 2) + z0);
+        }
+    }
+}
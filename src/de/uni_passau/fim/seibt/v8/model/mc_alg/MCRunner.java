@@ -14,9 +14,14 @@ import java.util.function.Consumer;
 
 import javafx.beans.property.DoubleProperty;
 import javafx.beans.property.SimpleDoubleProperty;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.BrickIndexedVolume;
 import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.MCVolume;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.VolumePyramid;
 import de.uni_passau.fim.seibt.v8.util.Buffers;
 import de.uni_passau.fim.seibt.v8.util.Vector3f;
+import de.uni_passau.fim.seibt.v8.util.jfr.MeshPublishEvent;
+import de.uni_passau.fim.seibt.v8.util.jfr.SliceEvent;
+import de.uni_passau.fim.seibt.v8.util.metrics.Metrics;
 
 import static de.uni_passau.fim.seibt.v8.model.mc_alg.MCRunner.Type.*;
 
@@ -24,6 +29,8 @@ import static de.uni_passau.fim.seibt.v8.model.mc_alg.MCRunner.Type.*;
  * <code>Runnable</code> that performs the Marching Cubes algorithm over the values of a given <code>MCVolume</code>.
  * Can be configured to update the resulting triangle mesh after every cube, slice, or after the whole computation is
  * finished. Optionally the computation can pause after every update.
+ * If the data is a <code>BrickIndexedVolume</code> every slice is processed in tiles of the size of a brick and tiles
+ * the surface can not pass through are skipped.
  */
 public class MCRunner implements Runnable {
 
@@ -53,8 +60,11 @@ public class MCRunner implements Runnable {
     private DoubleProperty progress; // 0 or negative => 0%, 1 or greater => 100%
 
     private MCVolume data;
+    private VolumePyramid pyramid; // if not null the data is taken from the level matching the gridSize
     private float level;
     private int gridSize;
+    private float scale;  // the factor between positions in the data and positions in the mesh
+    private float offset; // added to the scaled positions, centers the vertices of a pyramid level on its blocks
     private Type type;
     private Consumer<Mesh> meshConsumer; // will be called with the current mesh after every mesh update
     private Consumer<Long> onFinish;
@@ -120,19 +130,47 @@ public class MCRunner implements Runnable {
         this.data = data;
         this.level = level;
         this.gridSize = gridSize;
+        this.scale = 1;
+        this.offset = 0;
         this.type = type;
 
         this.pausing = false;
         this.paused = false;
         this.numLastTriangles = 0;
 
-        int capacity = 100000;
+        // small volumes such as the bricks re-meshed by an IncrementalExtractor do not need the full capacity
+        int capacity = (int) Math.min(100000, 4L * data.xSize() * data.ySize() + 16);
         this.points = new LinkedHashMap<>(capacity);
         this.indices = new ArrayList<>(capacity);
         this.normals = new ArrayList<>(capacity);
         this.edgeCache = new HashMap<>(capacity);
     }
 
+    /**
+     * Constructs a new <code>MCRunner</code> that performs the Marching Cubes algorithm over the coarsest level of
+     * the given <code>VolumePyramid</code> whose spacing divides <code>gridSize</code> (see
+     * {@link VolumePyramid#levelFor(int)}). The level is built if necessary when the run starts. Vertex positions are scaled back to level 0, so the mesh matches the
+     * mesh an <code>MCRunner</code> over level 0 produces.
+     *
+     * @param pyramid
+     *         the <code>VolumePyramid</code> containing the data for the Marching Cubes algorithm
+     * @param level
+     *         the level for the Marching Cubes algorithm
+     * @param gridSize
+     *         the grid size in level 0 (that is the x/y/z dimensions of the cubes)
+     * @param type
+     *         the type for the <code>MCRunner</code>
+     *
+     * @throws NullPointerException
+     *         if <code>pyramid</code> or <code>type</code> is <code>null</code>
+     * @throws IllegalArgumentException
+     *         if <code>level</code> is smaller than 0 or <code>gridSize</code> is smaller than 1
+     */
+    public MCRunner(VolumePyramid pyramid, float level, int gridSize, Type type) {
+        this(pyramid.level(0), level, gridSize, type);
+        this.pyramid = pyramid;
+    }
+
     /**
      * Returns the x size of the underlying volume.
      *
@@ -215,43 +253,101 @@ public class MCRunner implements Runnable {
     @Override
     public void run() {
         long startTime = System.currentTimeMillis();
+
+        if (pyramid != null) {
+            int k = pyramid.levelFor(gridSize);
+
+            data = pyramid.level(k);
+            gridSize = Math.max(1, gridSize >> k);
+            scale = 1 << k;
+            offset = (scale - 1) / 2;
+        }
+
         int cubesInSlice = data.xSize() * data.ySize() / gridSize * gridSize;
         int numCubes = (data.zSize() * cubesInSlice) / gridSize;
         Cube cube = new Cube();
         int doneCubes = 0;
         int cubeIndex;
+        Metrics metrics = Metrics.get();
+        SliceEvent sliceEvent;
+        long sliceStart;
+        long slicePaused;
+        int sliceCubes;
+        int activeCubes;
+        int sliceIndices;
+        int sliceTriangles;
+        int xEnd = data.xSize() - gridSize; // the cubes with x < xEnd fit into the volume
+        int yEnd = data.ySize() - gridSize;
+        int tileSize; // the x/y dimension of the tiles a slice is processed in
+        BrickIndexedVolume bricks = null;
+
+        if (data instanceof BrickIndexedVolume) {
+            bricks = (BrickIndexedVolume) data;
+            tileSize = Math.max(bricks.brickSize() / gridSize, 1) * gridSize;
+        } else {
+            tileSize = Math.max(Math.max(xEnd, yEnd), 1);
+        }
 
         progress.set(0);
 
         for (int z = 0; z < data.zSize() - gridSize; z += gridSize) {
-            for (int y = 0; y < data.ySize() - gridSize; y += gridSize) {
-                for (int x = 0; x < data.xSize() - gridSize; x += gridSize) {
+            sliceEvent = new SliceEvent();
+            sliceEvent.begin();
+            sliceStart = System.nanoTime();
+            slicePaused = 0;
+            sliceCubes = 0;
+            activeCubes = 0;
+            sliceIndices = indices.size();
+
+            for (int tileY = 0; tileY < yEnd; tileY += tileSize) {
+                for (int tileX = 0; tileX < xEnd; tileX += tileSize) {
+                    int tileYEnd = Math.min(tileY + tileSize, yEnd);
+                    int tileXEnd = Math.min(tileX + tileSize, xEnd);
+
+                    if (bricks != null && isUniform(bricks, tileX, tileY, z, tileXEnd - 1 + gridSize,
+                            tileYEnd - 1 + gridSize, z + gridSize)) {
+
+                        sliceCubes += ((tileYEnd - tileY + gridSize - 1) / gridSize)
+                                * ((tileXEnd - tileX + gridSize - 1) / gridSize);
+                        continue;
+                    }
 
-                    computeVertices(x, y, z, cube);
-                    cubeIndex = cube.getIndex(level);
+                    for (int y = tileY; y < tileYEnd; y += gridSize) {
+                        for (int x = tileX; x < tileXEnd; x += gridSize) {
 
-                    if ((cubeIndex != 0) && (cubeIndex != 255)) {
-                        computeEdges(x, y, z, cube, cubeIndex);
-                        updateMesh(cube, cubeIndex);
-                    }
+                            computeVertices(x, y, z, cube);
+                            cubeIndex = cube.getIndex(level);
+                            sliceCubes++;
 
-                    if (type == CUBE) {
-                        outputMesh();
-                    }
+                            if ((cubeIndex != 0) && (cubeIndex != 255)) {
+                                computeEdges(x, y, z, cube, cubeIndex);
+                                updateMesh(cube, cubeIndex);
+                                activeCubes++;
+                            }
 
-                    if (Thread.interrupted()) {
-                        return;
-                    }
+                            if (type == CUBE) {
+                                outputMesh();
+                            }
+
+                            if (Thread.interrupted()) {
+                                return;
+                            }
+
+                            if (paused) {
+                                long pauseStart = System.nanoTime();
 
-                    if (paused) {
-                        synchronized (this) {
+                                synchronized (this) {
 
-                            while (paused) {
-                                try {
-                                    wait();
-                                } catch (InterruptedException e) {
-                                    return;
+                                    while (paused) {
+                                        try {
+                                            wait();
+                                        } catch (InterruptedException e) {
+                                            return;
+                                        }
+                                    }
                                 }
+
+                                slicePaused += System.nanoTime() - pauseStart;
                             }
                         }
                     }
@@ -264,6 +360,19 @@ public class MCRunner implements Runnable {
 
             cleanCache(z);
 
+            sliceTriangles = (indices.size() - sliceIndices) / 3;
+            metrics.paused(slicePaused);
+            metrics.sliceMarched(sliceCubes, activeCubes, sliceTriangles, System.nanoTime() - sliceStart - slicePaused,
+                    edgeCache.size());
+
+            if (sliceEvent.shouldCommit()) {
+                sliceEvent.z = z;
+                sliceEvent.cubes = sliceCubes;
+                sliceEvent.activeCubes = activeCubes;
+                sliceEvent.triangles = sliceTriangles;
+                sliceEvent.commit();
+            }
+
             progress.set((doneCubes += cubesInSlice) / (float) numCubes);
         }
 
@@ -276,6 +385,45 @@ public class MCRunner implements Runnable {
         }
     }
 
+    /**
+     * Returns whether the surface can not pass through the given box of positions because all values in the bricks
+     * overlapping it are either smaller than or equal to the <code>level</code> or greater than the
+     * <code>level</code>. All cubes inside the box then have the index 255 or 0 respectively.
+     *
+     * @param bricks
+     *         the volume providing the minimum and maximum values of its bricks
+     * @param x0
+     *         the smallest x coordinate in the box
+     * @param y0
+     *         the smallest y coordinate in the box
+     * @param z0
+     *         the smallest z coordinate in the box
+     * @param x1
+     *         the greatest x coordinate in the box
+     * @param y1
+     *         the greatest y coordinate in the box
+     * @param z1
+     *         the greatest z coordinate in the box
+     *
+     * @return true iff no cube in the box is intersected by the surface
+     */
+    private boolean isUniform(BrickIndexedVolume bricks, int x0, int y0, int z0, int x1, int y1, int z1) {
+        int brickSize = bricks.brickSize();
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+
+        for (int bz = z0 / brickSize; bz <= z1 / brickSize; bz++) {
+            for (int by = y0 / brickSize; by <= y1 / brickSize; by++) {
+                for (int bx = x0 / brickSize; bx <= x1 / brickSize; bx++) {
+                    min = Math.min(min, bricks.brickMin(bx, by, bz));
+                    max = Math.max(max, bricks.brickMax(bx, by, bz));
+                }
+            }
+        }
+
+        return max <= level || min > level;
+    }
+
     /**
      * Removes mappings from the <code>edgeCache</code> that will no be used by the algorithm again.
      *
@@ -342,6 +490,9 @@ public class MCRunner implements Runnable {
         }
 
         if (meshConsumer != null) {
+            MeshPublishEvent publishEvent = new MeshPublishEvent();
+            publishEvent.begin();
+
             FloatBuffer points = Buffers.allocateFloatBuffer(this.points.size() * 3 + this.normals.size() * 3);
             FloatBuffer normals = Buffers.allocateFloatBuffer(this.normals.size() * 3);
             IntBuffer indices = Buffers.allocateIntBuffer(this.indices.size());
@@ -350,16 +501,23 @@ public class MCRunner implements Runnable {
             Iterator<Vector3f> normalsIt = this.normals.iterator();
 
             Vertex point;
+            Vector3f location;
             Vector3f normal;
             Vector3f normalLinePoint;
             while (pointsIt.hasNext() && normalsIt.hasNext()) {
                 point = pointsIt.next().getKey();
                 normal = normalsIt.next();
-                normalLinePoint = point.getLocation().add(normal);
+                location = point.getLocation();
+
+                if (scale != 1) {
+                    location = location.mul(scale).add(new Vector3f(offset, offset, offset));
+                }
 
-                points.put(point.getLocation().getX());
-                points.put(point.getLocation().getY());
-                points.put(point.getLocation().getZ());
+                normalLinePoint = location.add(normal);
+
+                points.put(location.getX());
+                points.put(location.getY());
+                points.put(location.getZ());
 
                 normals.put(normal.getX());
                 normals.put(normal.getY());
@@ -375,6 +533,13 @@ public class MCRunner implements Runnable {
             normals.flip();
             indices.flip();
 
+            if (publishEvent.shouldCommit()) {
+                publishEvent.vertices = this.points.size();
+                publishEvent.triangles = this.indices.size() / 3;
+                publishEvent.bytes = 4L * (points.capacity() + normals.capacity() + indices.capacity());
+                publishEvent.commit();
+            }
+
             meshConsumer.accept(new Mesh(points, normals, indices));
         }
 
@@ -2,6 +2,10 @@ package de.uni_passau.fim.seibt.v8.model.mc_alg;
 
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.Collection;
+
+import de.uni_passau.fim.seibt.v8.util.Buffers;
+import de.uni_passau.fim.seibt.v8.util.metrics.Metrics;
 
 /**
  * Container class for <code>Buffer</code> objects containing information that will be used by OpenGL in
@@ -24,6 +28,54 @@ public class Mesh {
         this.vertices = vertices;
         this.normals = normals;
         this.indices = indices;
+
+        Metrics.get().meshCreated(this, 4L * (vertices.capacity() + normals.capacity() + indices.capacity()));
+    }
+
+    /**
+     * Constructs a new <code>Mesh</code> containing the triangles of all the given meshes. The buffers of the given
+     * meshes are not modified.
+     *
+     * @param meshes the meshes to merge
+     * @return the merged <code>Mesh</code>
+     */
+    public static Mesh merge(Collection<Mesh> meshes) {
+        int numVertices = 0;
+        int numNormals = 0;
+        int numIndices = 0;
+
+        for (Mesh mesh : meshes) {
+            numVertices += mesh.vertices.limit();
+            numNormals += mesh.normals.limit();
+            numIndices += mesh.indices.limit();
+        }
+
+        FloatBuffer vertices = Buffers.allocateFloatBuffer(numVertices);
+        FloatBuffer normals = Buffers.allocateFloatBuffer(numNormals);
+        IntBuffer indices = Buffers.allocateIntBuffer(numIndices);
+
+        for (Mesh mesh : meshes) {
+            int offset = vertices.position() / 6; // every vertex is followed by the end point of its normal line
+            FloatBuffer meshVertices = mesh.vertices.duplicate();
+            FloatBuffer meshNormals = mesh.normals.duplicate();
+            IntBuffer meshIndices = mesh.indices.duplicate();
+
+            meshVertices.rewind();
+            meshNormals.rewind();
+            meshIndices.rewind();
+            vertices.put(meshVertices);
+            normals.put(meshNormals);
+
+            while (meshIndices.hasRemaining()) {
+                indices.put(meshIndices.get() + offset);
+            }
+        }
+
+        vertices.flip();
+        normals.flip();
+        indices.flip();
+
+        return new Mesh(vertices, normals, indices);
     }
 
     /**
@@ -0,0 +1,448 @@
+package de.uni_passau.fim.seibt.v8.model.mc_alg;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.SimpleDoubleProperty;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.MCVolume;
+import de.uni_passau.fim.seibt.v8.util.ExportService;
+
+/**
+ * <code>Runnable</code> that extracts the meshes of all phases of a time series of volumes sharing the same grid,
+ * such as a cardiac 4D series. Phases are loaded and extracted concurrently, as many at a time as the memory budget
+ * allows for their volumes.
+ * <p>
+ * Each phase is divided into bricks of <code>BRICK_SIZE</code> positions that are extracted in parallel. Bricks
+ * whose values can not contain the surface are skipped using their minimum and maximum. For all other bricks a hash
+ * of the values their mesh depends on is computed, bricks whose values did not change since an earlier phase reuse
+ * the mesh extracted for that phase, so static regions around a moving structure are extracted only once. The values
+ * are kept with the cached mesh and compared before it is reused, so a collision of the hashes can not change the
+ * mesh.
+ */
+public class TimeSeriesExtractor implements Runnable {
+
+    /**
+     * The mesh of a brick in the <code>chunkCache</code> together with the values it was extracted from.
+     */
+    private static class Chunk {
+
+        private final float[] values;
+        private final Mesh mesh;
+
+        private Chunk(float[] values, Mesh mesh) {
+            this.values = values;
+            this.mesh = mesh;
+        }
+    }
+
+    /**
+     * The x/y/z dimension of the bricks the phases are divided into.
+     */
+    public static final int BRICK_SIZE = 16;
+
+    private final List<Callable<? extends MCVolume>> phases;
+    private final float level;
+    private final int gridSize;
+    private final long maxBytes;
+
+    private final Map<Long, Chunk> chunkCache; // the meshes of bricks by the hash of their values and their index
+    private final AtomicLong chunkCacheBytes;
+    private final long maxChunkCacheBytes;
+
+    private final DoubleProperty progress;
+    private final AtomicInteger extractedChunks;
+    private final AtomicInteger reusedChunks;
+    private final AtomicInteger skippedChunks;
+    private final Set<ExportService.Export> pendingExports; // the unfinished exports of the current run
+
+    private BiConsumer<Integer, Mesh> phaseConsumer; // will be called with the index and mesh of every phase
+    private Consumer<Long> onFinish;
+    private File outputDirectory;
+    private ExportService exportService;
+    private ExportService.Format outputFormat;
+
+    private volatile double phasesPerSecond;
+
+    /**
+     * Constructs a new <code>TimeSeriesExtractor</code> for the given phases.
+     *
+     * @param phases
+     *         the loaders for the volumes of the phases, all volumes must have the same dimensions
+     * @param level
+     *         the level for the Marching Cubes algorithm
+     * @param gridSize
+     *         the grid size, must be a power of 2 not greater than <code>BRICK_SIZE</code>
+     * @param maxBytes
+     *         the maximum number of bytes the extraction may occupy, a quarter of it is used for the cache of
+     *         extracted chunks and the rest for the volumes of the phases extracted at the same time, at least one
+     *         phase is always extracted
+     *
+     * @throws NullPointerException
+     *         if <code>phases</code> is <code>null</code>
+     * @throws IllegalArgumentException
+     *         if <code>level</code> is smaller than 0 or <code>gridSize</code> is invalid
+     */
+    public TimeSeriesExtractor(List<? extends Callable<? extends MCVolume>> phases, float level, int gridSize,
+                               long maxBytes) {
+
+        Objects.requireNonNull(phases, "phases must not be null!");
+
+        if (!(level >= 0)) {
+            throw new IllegalArgumentException("level must be greater or equal to 0!");
+        }
+
+        if (gridSize < 1 || gridSize > BRICK_SIZE || Integer.bitCount(gridSize) != 1) {
+            throw new IllegalArgumentException("gridSize must be a power of 2 not greater than " + BRICK_SIZE + "!");
+        }
+
+        this.phases = new ArrayList<>(phases);
+        this.level = level;
+        this.gridSize = gridSize;
+        this.maxBytes = maxBytes;
+        this.chunkCache = new ConcurrentHashMap<>();
+        this.chunkCacheBytes = new AtomicLong();
+        this.maxChunkCacheBytes = Math.max(0, maxBytes / 4);
+        this.progress = new SimpleDoubleProperty(0);
+        this.extractedChunks = new AtomicInteger();
+        this.reusedChunks = new AtomicInteger();
+        this.skippedChunks = new AtomicInteger();
+        this.pendingExports = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Returns the progress property of this <code>TimeSeriesExtractor</code>. Will have a value between 0 - 1
+     * indicating the fraction of phases done.
+     *
+     * @return the progress property
+     */
+    public DoubleProperty progressProperty() {
+        return progress;
+    }
+
+    /**
+     * Sets the method that will be called with the index and the <code>Mesh</code> of every phase when it is done.
+     * Phases may finish in any order and the method may be called by multiple threads at the same time.
+     *
+     * @param phaseConsumer
+     *         the <code>BiConsumer</code> that should accept the phases
+     */
+    public void setOnPhaseFinished(BiConsumer<Integer, Mesh> phaseConsumer) {
+        this.phaseConsumer = phaseConsumer;
+    }
+
+    /**
+     * Sets the method that will be called after all phases are done. The <code>Consumer</code> will be supplied with
+     * a <code>Long</code> representing the time in milliseconds the execution took.
+     *
+     * @param onFinish
+     *         the method to be called after all phases are done
+     */
+    public void setOnRunFinished(Consumer<Long> onFinish) {
+        this.onFinish = onFinish;
+    }
+
+    /**
+     * Sets the directory the mesh of every phase is exported to. Phase i is written to 'phase_i' with i padded to
+     * three digits and the extension of the format. The meshes are exported by the given <code>ExportService</code>,
+     * whose memory limit also holds back the extraction when the exports can not keep up. A run finishes when all
+     * of its exports are finished.
+     *
+     * @param directory
+     *         the directory to write the meshes to
+     * @param exportService
+     *         the <code>ExportService</code> exporting the meshes
+     * @param format
+     *         the file format
+     *
+     * @throws NullPointerException
+     *         if <code>exportService</code> or <code>format</code> is <code>null</code>
+     */
+    public void setOutput(File directory, ExportService exportService, ExportService.Format format) {
+        this.outputDirectory = directory;
+        this.exportService = Objects.requireNonNull(exportService, "exportService must not be null!");
+        this.outputFormat = Objects.requireNonNull(format, "format must not be null!");
+    }
+
+    /**
+     * Returns the number of phases extracted per second during the last run.
+     *
+     * @return the throughput in phases per second
+     */
+    public double getPhasesPerSecond() {
+        return phasesPerSecond;
+    }
+
+    /**
+     * Returns the number of bricks whose mesh was extracted.
+     *
+     * @return the number of extracted bricks
+     */
+    public int getExtractedChunks() {
+        return extractedChunks.get();
+    }
+
+    /**
+     * Returns the number of bricks whose mesh was reused from an earlier phase.
+     *
+     * @return the number of reused bricks
+     */
+    public int getReusedChunks() {
+        return reusedChunks.get();
+    }
+
+    /**
+     * Returns the number of bricks skipped because the surface can not pass through them.
+     *
+     * @return the number of skipped bricks
+     */
+    public int getSkippedChunks() {
+        return skippedChunks.get();
+    }
+
+    @Override
+    public void run() {
+        long startTime = System.currentTimeMillis();
+
+        if (phases.isEmpty()) {
+            return;
+        }
+
+        // the first phase is loaded on its own to learn the size of a phase, its task takes it out of the reference
+        AtomicReference<MCVolume> first = new AtomicReference<>();
+
+        try {
+            first.set(phases.get(0).call());
+        } catch (Exception e) {
+            System.err.println("Could not load phase 0. " + e);
+            return;
+        }
+
+        int xSize = first.get().xSize();
+        int ySize = first.get().ySize();
+        int zSize = first.get().zSize();
+        long phaseBytes = Math.max(1, 4L * xSize * ySize * zSize);
+        int numThreads = (int) Math.max(1, Math.min(Math.min(phases.size(), Runtime.getRuntime().availableProcessors()),
+                (maxBytes - maxChunkCacheBytes) / phaseBytes));
+        Semaphore budget = new Semaphore(numThreads);
+        AtomicInteger donePhases = new AtomicInteger();
+        List<Future<?>> results = new ArrayList<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads, r -> {
+            Thread thread = new Thread(r, TimeSeriesExtractor.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        progress.set(0);
+
+        try {
+            for (int i = 0; i < phases.size(); i++) {
+                int phase = i;
+
+                budget.acquire(); // no more volumes are loaded than the budget allows
+
+                results.add(executor.submit(() -> {
+                    try {
+                        MCVolume volume = (phase == 0) ? first.getAndSet(null) : phases.get(phase).call();
+
+                        if (volume.xSize() != xSize || volume.ySize() != ySize || volume.zSize() != zSize) {
+                            throw new IllegalArgumentException("The dimensions of phase " + phase + " differ!");
+                        }
+
+                        finishPhase(phase, extract(volume));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        System.err.println("Could not extract phase " + phase + ". " + e);
+                    } finally {
+                        budget.release();
+                    }
+
+                    int done = donePhases.incrementAndGet();
+                    long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+
+                    phasesPerSecond = done * 1000.0 / elapsed;
+                    progress.set(done / (double) phases.size());
+                }));
+            }
+
+            for (Future<?> result : results) {
+                result.get();
+            }
+
+            // finished exports remove themselves, no export is added anymore
+            for (ExportService.Export export : pendingExports) {
+                export.await();
+            }
+        } catch (InterruptedException e) {
+            pendingExports.forEach(ExportService.Export::cancel);
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            System.err.println("Could not extract the time series. " + e.getCause());
+        } finally {
+            executor.shutdownNow();
+            pendingExports.clear();
+            chunkCache.clear();
+            chunkCacheBytes.set(0);
+        }
+
+        if (onFinish != null) {
+            onFinish.accept(System.currentTimeMillis() - startTime);
+        }
+    }
+
+    /**
+     * Passes the mesh of a phase to the <code>phaseConsumer</code> and exports it if an output directory is set.
+     *
+     * @param phase
+     *         the index of the phase
+     * @param mesh
+     *         the mesh of the phase
+     *
+     * @throws InterruptedException
+     *         if the thread is interrupted while waiting for the <code>ExportService</code>
+     */
+    private void finishPhase(int phase, Mesh mesh) throws InterruptedException {
+
+        if (phaseConsumer != null) {
+            phaseConsumer.accept(phase, mesh);
+        }
+
+        if (outputDirectory != null) {
+            File file = new File(outputDirectory, String.format("phase_%03d.%s", phase, outputFormat.extension()));
+
+            ExportService.Export export = exportService.submit(mesh, file, EnumSet.of(outputFormat));
+
+            // added before the callback is set, which removes it immediately if the export is already finished
+            pendingExports.add(export);
+            export.setOnFinished(pendingExports::remove);
+        }
+    }
+
+    /**
+     * Extracts the mesh of one phase brick by brick.
+     *
+     * @param volume
+     *         the volume of the phase
+     *
+     * @return the mesh of the phase
+     */
+    private Mesh extract(MCVolume volume) {
+        int xBricks = (volume.xSize() + BRICK_SIZE - 1) / BRICK_SIZE;
+        int yBricks = (volume.ySize() + BRICK_SIZE - 1) / BRICK_SIZE;
+        int zBricks = (volume.zSize() + BRICK_SIZE - 1) / BRICK_SIZE;
+        Mesh[] chunks = new Mesh[xBricks * yBricks * zBricks];
+
+        IntStream.range(0, chunks.length).parallel().forEach(i -> {
+            int x0 = (i % xBricks) * BRICK_SIZE;
+            int y0 = ((i / xBricks) % yBricks) * BRICK_SIZE;
+            int z0 = (i / (xBricks * yBricks)) * BRICK_SIZE;
+
+            chunks[i] = extractBrick(volume, i, x0, y0, z0);
+        });
+
+        List<Mesh> meshes = new ArrayList<>();
+
+        for (Mesh chunk : chunks) {
+            if (chunk != null) {
+                meshes.add(chunk);
+            }
+        }
+
+        return Mesh.merge(meshes);
+    }
+
+    /**
+     * Returns the mesh of one brick of a phase, taking it from the <code>chunkCache</code> if a brick with the same
+     * values was extracted before.
+     *
+     * @param volume
+     *         the volume of the phase
+     * @param i
+     *         the linear index of the brick
+     * @param x0
+     *         the x coordinate of the brick
+     * @param y0
+     *         the y coordinate of the brick
+     * @param z0
+     *         the z coordinate of the brick
+     *
+     * @return the mesh or <code>null</code> if the brick does not contain any triangles
+     */
+    private Mesh extractBrick(MCVolume volume, int i, int x0, int y0, int z0) {
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        int side = BRICK_SIZE + 3 * gridSize;
+        float[] values = new float[side * side * side];
+        long hash = i;
+        int n = 0;
+
+        // the corners of the cubes reach gridSize positions into the next brick, their gradients another gridSize
+        for (int z = z0 - gridSize; z < z0 + BRICK_SIZE + 2 * gridSize; z++) {
+            for (int y = y0 - gridSize; y < y0 + BRICK_SIZE + 2 * gridSize; y++) {
+                for (int x = x0 - gridSize; x < x0 + BRICK_SIZE + 2 * gridSize; x++) {
+                    float value = volume.value(x, y, z);
+
+                    values[n++] = value;
+                    hash = (hash ^ Float.floatToIntBits(value)) * 0x100000001b3L;
+
+                    if (x >= x0 && y >= y0 && z >= z0 && x < volume.xSize() && y < volume.ySize()
+                            && z < volume.zSize() && x <= x0 + BRICK_SIZE && y <= y0 + BRICK_SIZE
+                            && z <= z0 + BRICK_SIZE) {
+
+                        min = Math.min(min, value);
+                        max = Math.max(max, value);
+                    }
+                }
+            }
+        }
+
+        if (max <= level || min > level) {
+            skippedChunks.incrementAndGet();
+            return null;
+        }
+
+        Chunk chunk = chunkCache.get(hash);
+
+        if (chunk != null && Arrays.equals(chunk.values, values)) {
+            reusedChunks.incrementAndGet();
+            return chunk.mesh;
+        }
+
+        Mesh mesh = IncrementalExtractor.extractBrick(volume, x0, y0, z0, BRICK_SIZE, level, gridSize);
+        extractedChunks.incrementAndGet();
+
+        if (mesh != null) {
+            long bytes = 4L * (values.length + mesh.getVertices().limit() + mesh.getNormals().limit()
+                    + mesh.getIndices().limit());
+
+            if (chunkCacheBytes.addAndGet(bytes) > maxChunkCacheBytes
+                    || chunkCache.putIfAbsent(hash, new Chunk(values, mesh)) != null) {
+                chunkCacheBytes.addAndGet(-bytes);
+            }
+        }
+
+        return mesh;
+    }
+}
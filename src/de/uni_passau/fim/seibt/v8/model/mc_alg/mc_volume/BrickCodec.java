@@ -0,0 +1,111 @@
+package de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume;
+
+import java.util.Arrays;
+
+/**
+ * A fast lossless codec for the values of a brick. The bit patterns of consecutive floats are delta coded and the
+ * zigzag encoded deltas are bit-packed in blocks of 64 values, every block using the smallest bit width that can
+ * represent all its deltas. Neighbouring values in a volume are usually similar, so most deltas need only a few bits
+ * and bricks of a constant value shrink to one byte per block.
+ */
+class BrickCodec {
+
+    /**
+     * The number of values in a block.
+     */
+    static final int BLOCK_SIZE = 64;
+
+    private BrickCodec() {}
+
+    /**
+     * Encodes the given values.
+     *
+     * @param values
+     *         the values to encode, the length must be a multiple of {@link #BLOCK_SIZE}
+     *
+     * @return the encoded values
+     */
+    static byte[] encode(float[] values) {
+        byte[] out = new byte[values.length / BLOCK_SIZE * (1 + 4 * BLOCK_SIZE)]; // worst case of 32 bit per value
+        int[] deltas = new int[BLOCK_SIZE];
+        int previous = 0;
+        int pos = 0;
+
+        for (int block = 0; block < values.length; block += BLOCK_SIZE) {
+            int used = 0;
+
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                int bits = Float.floatToRawIntBits(values[block + i]);
+                int delta = bits - previous;
+
+                deltas[i] = (delta << 1) ^ (delta >> 31); // zigzag, small negative deltas become small positive ints
+                used |= deltas[i];
+                previous = bits;
+            }
+
+            int width = 32 - Integer.numberOfLeadingZeros(used);
+            long buffer = 0;
+            int buffered = 0;
+
+            out[pos++] = (byte) width;
+
+            if (width == 0) {
+                continue;
+            }
+
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                buffer |= (deltas[i] & 0xffffffffL) << buffered;
+                buffered += width;
+
+                while (buffered >= 8) {
+                    out[pos++] = (byte) buffer;
+                    buffer >>>= 8;
+                    buffered -= 8;
+                }
+            }
+        }
+
+        return Arrays.copyOf(out, pos);
+    }
+
+    /**
+     * Decodes values encoded by {@link #encode(float[])} into <code>target</code>.
+     *
+     * @param data
+     *         the encoded values
+     * @param target
+     *         the array to decode into, must have the length of the encoded array
+     */
+    static void decode(byte[] data, float[] target) {
+        int previous = 0;
+        int pos = 0;
+
+        for (int block = 0; block < target.length; block += BLOCK_SIZE) {
+            int width = data[pos++];
+
+            if (width == 0) {
+                Arrays.fill(target, block, block + BLOCK_SIZE, Float.intBitsToFloat(previous));
+                continue;
+            }
+
+            long mask = (1L << width) - 1;
+            long buffer = 0;
+            int buffered = 0;
+
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+
+                while (buffered < width) {
+                    buffer |= (data[pos++] & 0xffL) << buffered;
+                    buffered += 8;
+                }
+
+                int zigzag = (int) (buffer & mask);
+                buffer >>>= width;
+                buffered -= width;
+
+                previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                target[block + i] = Float.intBitsToFloat(previous);
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume;
+
+/**
+ * A <code>MCVolume</code> divided into cubic bricks of equal size that knows the minimum and maximum value of each
+ * brick. Brick (bx, by, bz) contains the positions (x, y, z) with <code>x / brickSize() == bx</code> and so on.
+ * The <code>MCRunner</code> uses this information to skip regions the surface can not pass through.
+ */
+public interface BrickIndexedVolume extends MCVolume {
+
+    /**
+     * Returns the x/y/z dimension of the bricks.
+     *
+     * @return the brick size
+     */
+    int brickSize();
+
+    /**
+     * Returns the minimum value in the brick with the given brick coordinates.
+     *
+     * @param bx the x coordinate of the brick
+     * @param by the y coordinate of the brick
+     * @param bz the z coordinate of the brick
+     * @return the minimum value
+     */
+    float brickMin(int bx, int by, int bz);
+
+    /**
+     * Returns the maximum value in the brick with the given brick coordinates.
+     *
+     * @param bx the x coordinate of the brick
+     * @param by the y coordinate of the brick
+     * @param bz the z coordinate of the brick
+     * @return the maximum value
+     */
+    float brickMax(int bx, int by, int bz);
+}
@@ -0,0 +1,369 @@
+package de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * A <code>BrickIndexedVolume</code> that stores its values in cubic bricks. Within a brick x varies fastest,
+ * followed by y and z, so all neighbours of a position are usually in the same few kilobytes of memory. The bricks
+ * themselves are stored one after another in a single array in Morton (Z-order) order of their brick coordinates,
+ * so bricks close to each other in the volume are close to each other in memory and a value is found with a single
+ * lookup of the slot of its brick.
+ * <p>
+ * Values may be changed using {@link #set(int, int, int, float)}. The bricks containing changed values are recorded
+ * as dirty until they are taken using {@link #takeDirtyBricks()}, so that only the affected parts of a mesh have to be
+ * extracted again.
+ */
+public class BrickedVolume implements BrickIndexedVolume {
+
+    private final int xSize;
+    private final int ySize;
+    private final int zSize;
+
+    private final int shift;      // log2 of the brick size
+    private final int mask;       // brick size - 1
+    private final int brickShift; // log2 of the number of values in a brick
+    private final int xBricks;
+    private final int yBricks;
+    private final int zBricks;
+
+    private final int[] slots; // maps the linear index of a brick to its position in Morton order
+    private final float[] values; // the values of all bricks, brick i starts at i << brickShift
+    private final float[] min;
+    private final float[] max;
+    private final BitSet dirty; // the linear indices of the bricks changed since the last takeDirtyBricks()
+
+    /**
+     * Constructs a new <code>BrickedVolume</code> of the given dimensions. All values will be 0.
+     *
+     * @param xSize
+     *         the size in x
+     * @param ySize
+     *         the size in y
+     * @param zSize
+     *         the size in z
+     * @param brickSize
+     *         the x/y/z dimension of the bricks, must be a power of 2 between 2 and 64, usually 8 or 16
+     *
+     * @throws IllegalArgumentException
+     *         if any of the sizes is negative, <code>brickSize</code> is invalid or the bricks do not fit into an
+     *         array
+     */
+    public BrickedVolume(int xSize, int ySize, int zSize, int brickSize) {
+
+        if (xSize < 0 || ySize < 0 || zSize < 0) {
+            throw new IllegalArgumentException("The sizes must not be negative!");
+        }
+
+        if (brickSize < 2 || brickSize > 64 || Integer.bitCount(brickSize) != 1) {
+            throw new IllegalArgumentException("brickSize must be a power of 2 between 2 and 64!");
+        }
+
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.zSize = zSize;
+        this.shift = Integer.numberOfTrailingZeros(brickSize);
+        this.mask = brickSize - 1;
+        this.brickShift = 3 * shift;
+        this.xBricks = (xSize + mask) >> shift;
+        this.yBricks = (ySize + mask) >> shift;
+        this.zBricks = (zSize + mask) >> shift;
+
+        long totalValues = ((long) xBricks * yBricks * zBricks) << brickShift;
+
+        if (totalValues > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("The bricks of a " + xSize + "x" + ySize + "x" + zSize
+                    + " volume do not fit into an array!");
+        }
+
+        int numBricks = xBricks * yBricks * zBricks;
+        long[] codes = new long[numBricks];
+        Integer[] order = new Integer[numBricks];
+
+        // sort the linear brick indices by the Morton codes of their brick coordinates
+        for (int bz = 0, i = 0; bz < zBricks; bz++) {
+            for (int by = 0; by < yBricks; by++) {
+                for (int bx = 0; bx < xBricks; bx++, i++) {
+                    codes[i] = morton(bx, by, bz);
+                    order[i] = i;
+                }
+            }
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> codes[i]));
+
+        this.slots = new int[numBricks];
+        for (int slot = 0; slot < numBricks; slot++) {
+            slots[order[slot]] = slot;
+        }
+
+        this.values = new float[(int) totalValues];
+        this.min = new float[numBricks];
+        this.max = new float[numBricks];
+        this.dirty = new BitSet(numBricks);
+    }
+
+    /**
+     * Constructs a new <code>BrickedVolume</code> containing the values of the given <code>MCVolume</code>.
+     * The bricks are filled in parallel.
+     *
+     * @param source
+     *         the volume to copy the values from
+     * @param brickSize
+     *         the x/y/z dimension of the bricks, must be a power of 2 between 2 and 64, usually 8 or 16
+     *
+     * @return the <code>BrickedVolume</code>
+     *
+     * @throws IllegalArgumentException
+     *         if <code>brickSize</code> is invalid
+     */
+    public static BrickedVolume of(MCVolume source, int brickSize) {
+        BrickedVolume volume = new BrickedVolume(source.xSize(), source.ySize(), source.zSize(), brickSize);
+
+        IntStream.range(0, volume.slots.length).parallel().forEach(i -> {
+            int bx = i % volume.xBricks;
+            int by = (i / volume.xBricks) % volume.yBricks;
+            int bz = i / (volume.xBricks * volume.yBricks);
+            int slot = volume.slots[i];
+            float brickMin = Float.POSITIVE_INFINITY;
+            float brickMax = Float.NEGATIVE_INFINITY;
+
+            for (int z = bz << volume.shift; z < Math.min((bz + 1) << volume.shift, volume.zSize); z++) {
+                for (int y = by << volume.shift; y < Math.min((by + 1) << volume.shift, volume.ySize); y++) {
+                    for (int x = bx << volume.shift; x < Math.min((bx + 1) << volume.shift, volume.xSize); x++) {
+                        float value = source.value(x, y, z);
+
+                        volume.values[volume.index(slot, x, y, z)] = value;
+                        brickMin = Math.min(brickMin, value);
+                        brickMax = Math.max(brickMax, value);
+                    }
+                }
+            }
+
+            volume.min[slot] = brickMin;
+            volume.max[slot] = brickMax;
+        });
+
+        return volume;
+    }
+
+    /**
+     * Interleaves the lower 21 bits of the given brick coordinates into a Morton code.
+     *
+     * @param bx
+     *         the x coordinate of the brick
+     * @param by
+     *         the y coordinate of the brick
+     * @param bz
+     *         the z coordinate of the brick
+     *
+     * @return the Morton code
+     */
+    static long morton(int bx, int by, int bz) {
+        return spread(bx) | (spread(by) << 1) | (spread(bz) << 2);
+    }
+
+    /**
+     * Inserts two 0 bits before each of the lower 21 bits of the given value.
+     *
+     * @param value
+     *         the value to spread
+     *
+     * @return the spread value
+     */
+    private static long spread(int value) {
+        long v = value & 0x1fffffL;
+
+        v = (v | (v << 32)) & 0x1f00000000ffffL;
+        v = (v | (v << 16)) & 0x1f0000ff0000ffL;
+        v = (v | (v << 8)) & 0x100f00f00f00f00fL;
+        v = (v | (v << 4)) & 0x10c30c30c30c30c3L;
+        v = (v | (v << 2)) & 0x1249249249249249L;
+
+        return v;
+    }
+
+    /**
+     * Returns the index of the given position in <code>values</code>.
+     *
+     * @param slot
+     *         the slot of the brick containing the position
+     * @param x
+     *         the x coordinate
+     * @param y
+     *         the y coordinate
+     * @param z
+     *         the z coordinate
+     *
+     * @return the index in <code>values</code>
+     */
+    private int index(int slot, int x, int y, int z) {
+        return (slot << brickShift) | (((((z & mask) << shift) | (y & mask)) << shift) | (x & mask));
+    }
+
+    /**
+     * Returns the Morton order position of the brick containing the given position.
+     *
+     * @param x
+     *         the x coordinate
+     * @param y
+     *         the y coordinate
+     * @param z
+     *         the z coordinate
+     *
+     * @return the slot of the brick
+     */
+    private int slot(int x, int y, int z) {
+        return slots[((z >> shift) * yBricks + (y >> shift)) * xBricks + (x >> shift)];
+    }
+
+    /**
+     * Sets the value at the given position and marks the brick containing it as dirty. The minimum and maximum of
+     * the brick are widened to include the value, they are made exact again by {@link #takeDirtyBricks()}.
+     *
+     * @param x
+     *         the x coordinate
+     * @param y
+     *         the y coordinate
+     * @param z
+     *         the z coordinate
+     * @param value
+     *         the new value
+     *
+     * @throws IndexOutOfBoundsException
+     *         if the position is out of bounds
+     */
+    public void set(int x, int y, int z, float value) {
+
+        if (x < 0 || x >= xSize || y < 0 || y >= ySize || z < 0 || z >= zSize) {
+            throw new IndexOutOfBoundsException("(" + x + ", " + y + ", " + z + ") is out of bounds!");
+        }
+
+        int slot = slot(x, y, z);
+
+        values[index(slot, x, y, z)] = value;
+
+        synchronized (dirty) {
+            min[slot] = Math.min(min[slot], value);
+            max[slot] = Math.max(max[slot], value);
+            dirty.set(((z >> shift) * yBricks + (y >> shift)) * xBricks + (x >> shift));
+        }
+    }
+
+    /**
+     * Returns the bricks changed by {@link #set(int, int, int, float)} since the last call of this method and marks
+     * all bricks as clean. The minimum and maximum of the returned bricks are recomputed. Brick (bx, by, bz) has the
+     * index <code>(bz * yBricks() + by) * xBricks() + bx</code> in the returned <code>BitSet</code>.
+     *
+     * @return the indices of the dirty bricks
+     */
+    public BitSet takeDirtyBricks() {
+
+        synchronized (dirty) {
+            BitSet taken = (BitSet) dirty.clone();
+
+            dirty.clear();
+
+            for (int i = taken.nextSetBit(0); i >= 0; i = taken.nextSetBit(i + 1)) {
+                int slot = slots[i];
+                float brickMin = Float.POSITIVE_INFINITY;
+                float brickMax = Float.NEGATIVE_INFINITY;
+                int bx = i % xBricks;
+                int by = (i / xBricks) % yBricks;
+                int bz = i / (xBricks * yBricks);
+
+                for (int z = bz << shift; z < Math.min((bz + 1) << shift, zSize); z++) {
+                    for (int y = by << shift; y < Math.min((by + 1) << shift, ySize); y++) {
+                        for (int x = bx << shift; x < Math.min((bx + 1) << shift, xSize); x++) {
+                            float value = values[index(slot, x, y, z)];
+
+                            brickMin = Math.min(brickMin, value);
+                            brickMax = Math.max(brickMax, value);
+                        }
+                    }
+                }
+
+                min[slot] = brickMin;
+                max[slot] = brickMax;
+            }
+
+            return taken;
+        }
+    }
+
+    /**
+     * Returns the number of bricks in x.
+     *
+     * @return the number of bricks in x
+     */
+    public int xBricks() {
+        return xBricks;
+    }
+
+    /**
+     * Returns the number of bricks in y.
+     *
+     * @return the number of bricks in y
+     */
+    public int yBricks() {
+        return yBricks;
+    }
+
+    /**
+     * Returns the number of bricks in z.
+     *
+     * @return the number of bricks in z
+     */
+    public int zBricks() {
+        return zBricks;
+    }
+
+    @Override
+    public float value(int x, int y, int z) {
+
+        if (z < 0 || z >= zSize) {
+            return 0f;
+        }
+
+        if (y < 0 || y >= ySize) {
+            return 0f;
+        }
+
+        if (x < 0 || x >= xSize) {
+            return 0f;
+        }
+
+        return values[index(slot(x, y, z), x, y, z)];
+    }
+
+    @Override
+    public int brickSize() {
+        return mask + 1;
+    }
+
+    @Override
+    public float brickMin(int bx, int by, int bz) {
+        return min[slots[(bz * yBricks + by) * xBricks + bx]];
+    }
+
+    @Override
+    public float brickMax(int bx, int by, int bz) {
+        return max[slots[(bz * yBricks + by) * xBricks + bx]];
+    }
+
+    @Override
+    public int xSize() {
+        return xSize;
+    }
+
+    @Override
+    public int ySize() {
+        return ySize;
+    }
+
+    @Override
+    public int zSize() {
+        return zSize;
+    }
+}
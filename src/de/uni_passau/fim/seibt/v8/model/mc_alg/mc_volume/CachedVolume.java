@@ -1,63 +1,126 @@
 package de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume;
 
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import de.uni_passau.fim.seibt.v8.controller.DCMImage;
+import de.uni_passau.fim.seibt.v8.util.jfr.SliceEvictEvent;
+import de.uni_passau.fim.seibt.v8.util.jfr.SliceLoadEvent;
+import de.uni_passau.fim.seibt.v8.util.metrics.Metrics;
 
 /**
- * A <code>MCVolume</code> that takes data from an internal FIFO cache of slices.
- * This implementation will call {@link de.uni_passau.fim.seibt.v8.controller.DCMImage#reset()} when the slice is
- * removed from the cache.
+ * A <code>MCVolume</code> that takes data from an internal cache of slices. The cache holds at most a given number
+ * of bytes and evicts the least recently used slices first. It may be read by multiple threads at the same time,
+ * a slice that is being loaded by one thread is never loaded by another one at the same time.
+ * <p>
+ * Slices are requested in increasing z order with a fixed stride by the <code>MCRunner</code>. Whenever a slice
+ * beyond the previously highest one is requested, the following slices in the direction of the stride are loaded in
+ * parallel on background threads. The number of prefetched slices adapts to the ratio of the time it takes to load a
+ * slice and the time between two requests for a new slice, so that loading happens while the previous slices are
+ * being processed.
  */
 public class CachedVolume implements MCVolume {
 
     /**
-     * <code>LinkedHashMap</code> used to maintain the cache.
+     * A cached slice.
      */
-    private class CacheMap extends LinkedHashMap<Integer, float[][]> {
+    private static class Slice {
 
-        private final int maxEntries;
+        private final CompletableFuture<float[][]> data = new CompletableFuture<>();
+        private volatile long lastAccess; // the value of the clock when the slice was last requested
+        private long bytes;               // the size of the data, written before data is completed
+    }
 
-        /**
-         * Constructs a new <code>CacheMap</code> that will drop its eldest entry when its size exceeds
-         * <code>maxEntries</code>.
-         *
-         * @param maxEntries the maximum number of entries for this <code>Map</code>
-         */
-        private CacheMap(int maxEntries) {
-            this.maxEntries = maxEntries;
-        }
+    /**
+     * The <code>RECENT_SLICES</code> slices requested last, the most recent one first. Reading one of them does not
+     * touch the cache, so hits, misses and accesses are only recorded when a different slice is requested, not for
+     * every value.
+     */
+    private static class Recent {
 
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Integer, float[][]> eldest) {
-            boolean remove = size() > maxEntries;
+        private final int[] z;
+        private final float[][][] data;
 
-            if (remove) {
-                images.get(eldest.getKey()).reset();
-            }
-
-            return remove;
+        private Recent(int[] z, float[][][] data) {
+            this.z = z;
+            this.data = data;
         }
     }
 
+    /**
+     * The number of slices a cube of the <code>MCRunner</code> reads including its gradients: the slices one stride
+     * below the cube up to two strides above it.
+     */
+    private static final int RECENT_SLICES = 4;
+
+    /**
+     * The maximum number of slices loaded ahead of the currently processed one.
+     */
+    public static final int MAX_PREFETCH_DEPTH = 16;
+
+    /**
+     * The weight of a new measurement in the moving averages of the load and processing times.
+     */
+    private static final double EWMA_WEIGHT = 0.25;
+
+    private static final ExecutorService prefetcher =
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "CachedVolume Prefetcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+
     private List<DCMImage> images;
-    private Map<Integer, float[][]> cache;
+    private Map<Integer, Slice> cache;
+    private long maxBytes;
     private int xSize;
     private int ySize;
 
+    private final AtomicLong clock;      // advanced whenever a slice is added to the cache
+    private final AtomicLong cachedBytes;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+    private volatile Recent recent;
+
+    // prefetching state, guarded by 'this'
+    private volatile int highest; // the highest slice index requested so far
+    private volatile int stride;  // the distance between the last two new highest slice indices
+    private long highestTime;     // the value of System.nanoTime() when the highest slice was first requested
+    private double loadNanos;     // moving average of the time it takes to load a slice
+    private double marchNanos;    // moving average of the time between two requests for a new highest slice
+
     /**
      * Constructs a new <code>CachedVolume</code> backed by the given <code>List</code> of <code>DCMImage</code>s.
-     * The cache for this <code>CachedVolume</code> will contain at most <code>maxSize</code> image raster.
+     * The slices in the cache for this <code>CachedVolume</code> will occupy at most <code>maxBytes</code> bytes,
+     * but at least one slice is always cached.
      *
      * @param images the <code>DCMImage</code>s to take data from
-     * @param maxSize the maximum size of the data cache
+     * @param maxBytes the maximum size of the data cache in bytes
      */
-    public CachedVolume(List<DCMImage> images, int maxSize) {
+    public CachedVolume(List<DCMImage> images, long maxBytes) {
         this.images = new ArrayList<>(images);
-        this.cache = new CacheMap(maxSize);
+        this.cache = new ConcurrentHashMap<>();
+        this.maxBytes = maxBytes;
+        this.clock = new AtomicLong();
+        this.cachedBytes = new AtomicLong();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+        this.highest = -1;
+        this.stride = 1;
+        this.recent = new Recent(new int[RECENT_SLICES], new float[RECENT_SLICES][][]);
+
+        Arrays.fill(recent.z, -1);
 
         float[][] firstSlice;
         if (images.isEmpty()) {
@@ -78,11 +141,240 @@ public class CachedVolume implements MCVolume {
      */
     private float[][] get(int z) {
 
-        if (!cache.containsKey(z)) {
-            cache.put(z, images.get(z).getImageRaster());
+        while (true) {
+            Slice slice = cache.get(z);
+            boolean loader = false;
+
+            if (slice == null) {
+                Slice created = new Slice();
+
+                slice = cache.putIfAbsent(z, created);
+
+                if (slice == null) {
+                    slice = created;
+                    loader = true;
+                }
+            }
+
+            if (loader) {
+                misses.increment();
+                Metrics.get().sliceCacheMiss();
+                load(z, slice);
+            } else {
+                hits.increment();
+                Metrics.get().sliceCacheHit();
+            }
+
+            slice.lastAccess = clock.get();
+
+            if (z > highest || z < highest - (RECENT_SLICES - 1) * stride) {
+                prefetch(z);
+            }
+
+            try {
+                return slice.data.join();
+            } catch (CompletionException e) {
+                cache.remove(z, slice);
+
+                if (loader) {
+                    throw e;
+                }
+            }
         }
+    }
 
-        return cache.get(z);
+    /**
+     * Loads slice z from its <code>DCMImage</code> into <code>slice</code>, updates the average load time and
+     * evicts slices if the cache exceeds its maximum size.
+     *
+     * @param z the slice index
+     * @param slice the cache entry to load the data into
+     */
+    private void load(int z, Slice slice) {
+        SliceLoadEvent event = new SliceLoadEvent();
+        DCMImage image = images.get(z);
+        long startTime = System.nanoTime();
+        float[][] data;
+
+        event.begin();
+
+        try {
+            data = image.getImageRaster();
+        } catch (RuntimeException e) {
+            slice.data.completeExceptionally(e);
+            return;
+        }
+
+        synchronized (this) {
+            loadNanos = average(loadNanos, System.nanoTime() - startTime);
+        }
+
+        slice.bytes = (data.length == 0) ? 0 : 4L * data.length * data[0].length;
+        slice.lastAccess = clock.incrementAndGet();
+        cachedBytes.addAndGet(slice.bytes);
+        slice.data.complete(data);
+
+        if (event.shouldCommit()) {
+            event.z = z;
+            event.image = image.toString();
+            event.commit();
+        }
+
+        evict(z);
+    }
+
+    /**
+     * Removes the least recently used slices until the cache does not exceed its maximum size anymore. Slices that
+     * are still being loaded and the slice <code>keep</code> are not removed.
+     *
+     * @param keep the index of the slice to keep
+     */
+    private void evict(int keep) {
+
+        synchronized (cache) {
+
+            while (cachedBytes.get() > maxBytes) {
+                Map.Entry<Integer, Slice> eldest = null;
+
+                for (Map.Entry<Integer, Slice> entry : cache.entrySet()) {
+                    Slice slice = entry.getValue();
+
+                    if (entry.getKey() == keep || !slice.data.isDone() || slice.data.isCompletedExceptionally()) {
+                        continue;
+                    }
+
+                    if (eldest == null || slice.lastAccess < eldest.getValue().lastAccess) {
+                        eldest = entry;
+                    }
+                }
+
+                if (eldest == null || !cache.remove(eldest.getKey(), eldest.getValue())) {
+                    return;
+                }
+
+                SliceEvictEvent event = new SliceEvictEvent();
+
+                cachedBytes.addAndGet(-eldest.getValue().bytes);
+                evictions.increment();
+                Metrics.get().sliceCacheEviction();
+
+                if (event.shouldCommit()) {
+                    event.z = eldest.getKey();
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that slice z is the new highest requested slice and submits the slices following it to the
+     * prefetching thread. The gradients of the cubes below the highest slice reach three strides below it, a slice
+     * further below starts a new pass over the volume, for example by another <code>MCRunner</code> returning to the
+     * start, and becomes the new highest slice.
+     *
+     * @param z the slice index
+     */
+    private synchronized void prefetch(int z) {
+
+        if (z < highest - (RECENT_SLICES - 1) * stride) {
+            highest = -1;
+        }
+
+        if (z <= highest) {
+            return;
+        }
+
+        long now = System.nanoTime();
+
+        if (highest >= 0) {
+            stride = z - highest;
+            marchNanos = average(marchNanos, now - highestTime);
+        }
+
+        highest = z;
+        highestTime = now;
+
+        int end = Math.min(z + depth() * stride, zSize() - 1);
+
+        for (int next = z + stride; next <= end; next += stride) {
+            Slice created = new Slice();
+
+            if (cache.putIfAbsent(next, created) == null) {
+                int index = next;
+                prefetcher.execute(() -> load(index, created));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of slices to prefetch. Enough slices are prefetched to cover the time it takes to load one
+     * slice with the time it takes to process the previous ones, as long as they fit into the cache next to the
+     * <code>RECENT_SLICES</code> slices the <code>MCRunner</code> is working on.
+     *
+     * @return the prefetch depth
+     */
+    private synchronized int depth() {
+
+        if (marchNanos <= 0) {
+            return 1;
+        }
+
+        int depth = (int) Math.min(MAX_PREFETCH_DEPTH, Math.ceil(loadNanos / marchNanos) + 1);
+        long sliceBytes = 4L * xSize * ySize;
+
+        if (sliceBytes > 0) {
+            depth = (int) Math.min(depth, maxBytes / sliceBytes - RECENT_SLICES);
+        }
+
+        return Math.max(1, depth);
+    }
+
+    /**
+     * Updates the exponentially weighted moving average <code>average</code> with <code>value</code>.
+     *
+     * @param average the current average, 0 if there were no values yet
+     * @param value the new value
+     * @return the new average
+     */
+    private static double average(double average, double value) {
+        return (average == 0) ? value : average + EWMA_WEIGHT * (value - average);
+    }
+
+    /**
+     * Returns the number of slice requests that were answered from the cache, including requests that waited for
+     * a slice another thread was loading.
+     *
+     * @return the number of cache hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of slice requests that required loading the slice.
+     *
+     * @return the number of cache misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of slices removed from the cache.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the number of bytes the cached slices occupy.
+     *
+     * @return the size of the cache in bytes
+     */
+    public long getCachedBytes() {
+        return cachedBytes.get();
     }
 
     @Override
@@ -100,7 +392,35 @@ public class CachedVolume implements MCVolume {
             return 0f;
         }
 
-        return get(z)[y][x];
+        return slice(z)[y][x];
+    }
+
+    /**
+     * Returns slice z, taking it from the <code>RECENT_SLICES</code> slices requested last if possible.
+     *
+     * @param z the slice index
+     * @return the slice
+     */
+    private float[][] slice(int z) {
+        Recent last = recent;
+
+        for (int i = 0; i < RECENT_SLICES; i++) {
+            if (last.z[i] == z) {
+                return last.data[i];
+            }
+        }
+
+        float[][] data = get(z);
+        int[] zs = new int[RECENT_SLICES];
+        float[][][] slices = new float[RECENT_SLICES][][];
+
+        zs[0] = z;
+        slices[0] = data;
+        System.arraycopy(last.z, 0, zs, 1, RECENT_SLICES - 1);
+        System.arraycopy(last.data, 0, slices, 1, RECENT_SLICES - 1);
+
+        recent = new Recent(zs, slices);
+        return data;
     }
 
     @Override
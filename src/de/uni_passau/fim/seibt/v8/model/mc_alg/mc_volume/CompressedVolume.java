@@ -0,0 +1,293 @@
+package de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * A <code>BrickIndexedVolume</code> that keeps its bricks compressed in memory (see <code>BrickCodec</code>) and
+ * decompresses them on demand. Every thread reading from the volume has its own LRU cache of decompressed bricks, so
+ * concurrent readers need no synchronization. The caches belong to the volume and are dropped together with it or by
+ * {@link #clearCaches()}, caches of threads that terminated are dropped when a new thread starts reading. The cache
+ * used last is remembered, so a thread reading on its own only looks up its cache when another thread read in
+ * between. Larger bricks compress better but make cache misses more expensive, a larger cache trades memory for
+ * fewer decompressions.
+ */
+public class CompressedVolume implements BrickIndexedVolume {
+
+    /**
+     * LRU cache of decompressed bricks of a single thread.
+     */
+    private class BrickCache extends LinkedHashMap<Integer, float[]> {
+
+        private final Thread owner; // the thread using this cache
+        private int lastIndex = -1; // the index of the brick accessed last
+        private float[] last;        // the brick accessed last
+        private float[] spare;       // the array of the last evicted brick, reused for the next decompression
+
+        /**
+         * Constructs a new <code>BrickCache</code> in access order.
+         *
+         * @param owner
+         *         the thread using the cache
+         */
+        private BrickCache(Thread owner) {
+            super(cachedBricks * 2, 0.75f, true);
+            this.owner = owner;
+        }
+
+        /**
+         * Returns the decompressed brick with the given linear index.
+         *
+         * @param index
+         *         the linear index of the brick
+         *
+         * @return the decompressed brick
+         */
+        private float[] brick(int index) {
+
+            if (index == lastIndex) {
+                return last;
+            }
+
+            float[] brick = get(index);
+
+            if (brick == null) {
+                brick = (spare != null) ? spare : new float[brickValues];
+                spare = null;
+
+                BrickCodec.decode(bricks[index], brick);
+                put(index, brick);
+            }
+
+            lastIndex = index;
+            last = brick;
+
+            return brick;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, float[]> eldest) {
+            boolean remove = size() > cachedBricks;
+
+            if (remove) {
+                spare = eldest.getValue();
+            }
+
+            return remove;
+        }
+    }
+
+    private final int xSize;
+    private final int ySize;
+    private final int zSize;
+
+    private final int shift; // log2 of the brick size
+    private final int mask;  // brick size - 1
+    private final int brickValues;
+    private final int xBricks;
+    private final int yBricks;
+
+    private final byte[][] bricks;
+    private final float[] min;
+    private final float[] max;
+
+    private final int cachedBricks;
+    private final Map<Thread, BrickCache> caches; // the cache of every reading thread
+    private volatile BrickCache recent;            // the cache used last, null if there is none
+
+    /**
+     * Constructs a new <code>CompressedVolume</code> of the given dimensions.
+     *
+     * @param xSize
+     *         the size in x
+     * @param ySize
+     *         the size in y
+     * @param zSize
+     *         the size in z
+     * @param brickSize
+     *         the x/y/z dimension of the bricks
+     * @param cachedBricks
+     *         the number of decompressed bricks every reading thread caches
+     */
+    private CompressedVolume(int xSize, int ySize, int zSize, int brickSize, int cachedBricks) {
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.zSize = zSize;
+        this.shift = Integer.numberOfTrailingZeros(brickSize);
+        this.mask = brickSize - 1;
+        this.brickValues = brickSize * brickSize * brickSize;
+        this.xBricks = (xSize + mask) >> shift;
+        this.yBricks = (ySize + mask) >> shift;
+
+        int zBricks = (zSize + mask) >> shift;
+        this.bricks = new byte[xBricks * yBricks * zBricks][];
+        this.min = new float[bricks.length];
+        this.max = new float[bricks.length];
+
+        this.cachedBricks = cachedBricks;
+        this.caches = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Constructs a new <code>CompressedVolume</code> containing the values of the given <code>MCVolume</code>.
+     * The bricks are compressed in parallel.
+     *
+     * @param source
+     *         the volume to copy the values from
+     * @param brickSize
+     *         the x/y/z dimension of the bricks, must be a power of 2 between 4 and 64, usually 8 or 16
+     * @param cachedBricks
+     *         the number of decompressed bricks every reading thread caches, must be at least 1
+     *
+     * @return the <code>CompressedVolume</code>
+     *
+     * @throws IllegalArgumentException
+     *         if <code>brickSize</code> or <code>cachedBricks</code> is invalid
+     */
+    public static CompressedVolume of(MCVolume source, int brickSize, int cachedBricks) {
+
+        if (brickSize < 4 || brickSize > 64 || Integer.bitCount(brickSize) != 1) {
+            throw new IllegalArgumentException("brickSize must be a power of 2 between 4 and 64!");
+        }
+
+        if (cachedBricks < 1) {
+            throw new IllegalArgumentException("cachedBricks must be greater or equal to 1!");
+        }
+
+        CompressedVolume volume = new CompressedVolume(source.xSize(), source.ySize(), source.zSize(), brickSize,
+                cachedBricks);
+
+        IntStream.range(0, volume.bricks.length).parallel().forEach(i -> {
+            int x0 = (i % volume.xBricks) << volume.shift;
+            int y0 = ((i / volume.xBricks) % volume.yBricks) << volume.shift;
+            int z0 = (i / (volume.xBricks * volume.yBricks)) << volume.shift;
+            float[] brick = new float[volume.brickValues];
+            float brickMin = Float.POSITIVE_INFINITY;
+            float brickMax = Float.NEGATIVE_INFINITY;
+
+            for (int z = z0, j = 0; z < z0 + brickSize; z++) {
+                for (int y = y0; y < y0 + brickSize; y++) {
+                    for (int x = x0; x < x0 + brickSize; x++, j++) {
+
+                        if (x < volume.xSize && y < volume.ySize && z < volume.zSize) {
+                            brick[j] = source.value(x, y, z);
+                            brickMin = Math.min(brickMin, brick[j]);
+                            brickMax = Math.max(brickMax, brick[j]);
+                        } else {
+                            brick[j] = (j > 0) ? brick[j - 1] : 0f; // repeat values outside the volume, costs 0 bits
+                        }
+                    }
+                }
+            }
+
+            volume.bricks[i] = BrickCodec.encode(brick);
+            volume.min[i] = brickMin;
+            volume.max[i] = brickMax;
+        });
+
+        return volume;
+    }
+
+    /**
+     * Drops the decompressed bricks cached by all threads, for example after an extraction finished.
+     */
+    public void clearCaches() {
+        recent = null;
+        caches.clear();
+    }
+
+    /**
+     * Returns the cache of the current thread, creating it if necessary. The map of caches is only consulted if
+     * another thread used its cache since the last call of the current thread.
+     *
+     * @return the <code>BrickCache</code> of the current thread
+     */
+    private BrickCache cache() {
+        Thread thread = Thread.currentThread();
+        BrickCache cache = recent;
+
+        if (cache != null && cache.owner == thread) {
+            return cache;
+        }
+
+        cache = caches.get(thread);
+
+        if (cache == null) {
+            caches.keySet().removeIf(t -> !t.isAlive());
+
+            cache = new BrickCache(thread);
+            caches.put(thread, cache); // only the thread itself adds its cache
+        }
+
+        recent = cache;
+        return cache;
+    }
+
+    /**
+     * Returns the number of bytes the compressed bricks occupy.
+     *
+     * @return the compressed size in bytes
+     */
+    public long compressedBytes() {
+        long bytes = 0;
+
+        for (byte[] brick : bricks) {
+            bytes += brick.length;
+        }
+
+        return bytes;
+    }
+
+    @Override
+    public float value(int x, int y, int z) {
+
+        if (z < 0 || z >= zSize) {
+            return 0f;
+        }
+
+        if (y < 0 || y >= ySize) {
+            return 0f;
+        }
+
+        if (x < 0 || x >= xSize) {
+            return 0f;
+        }
+
+        int index = ((z >> shift) * yBricks + (y >> shift)) * xBricks + (x >> shift);
+        float[] brick = cache().brick(index);
+
+        return brick[(((((z & mask) << shift) | (y & mask)) << shift) | (x & mask))];
+    }
+
+    @Override
+    public int brickSize() {
+        return mask + 1;
+    }
+
+    @Override
+    public float brickMin(int bx, int by, int bz) {
+        return min[(bz * yBricks + by) * xBricks + bx];
+    }
+
+    @Override
+    public float brickMax(int bx, int by, int bz) {
+        return max[(bz * yBricks + by) * xBricks + bx];
+    }
+
+    @Override
+    public int xSize() {
+        return xSize;
+    }
+
+    @Override
+    public int ySize() {
+        return ySize;
+    }
+
+    @Override
+    public int zSize() {
+        return zSize;
+    }
+}
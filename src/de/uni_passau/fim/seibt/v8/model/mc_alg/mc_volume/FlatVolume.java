@@ -0,0 +1,307 @@
+package de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+import de.uni_passau.fim.seibt.v8.util.Buffers;
+
+/**
+ * A <code>MCVolume</code> backed by off-heap memory. The values are stored as a linear sequence of floats in which x
+ * varies fastest, followed by y and z. As a single <code>ByteBuffer</code> can hold at most 2 GB the values are
+ * split into chunks of whole slices, so volumes of (almost) arbitrary size are supported. The number of slices in a
+ * chunk is a power of 2, so the chunk of a value and its index in there are found by a shift and a mask.
+ */
+public class FlatVolume implements MCVolume {
+
+    /**
+     * The maximum number of bytes in a chunk.
+     */
+    private static final int MAX_CHUNK_BYTES = Integer.MAX_VALUE - 7;
+
+    private final int xSize;
+    private final int ySize;
+    private final int zSize;
+    private final int sliceSize; // the number of values in a slice
+    private final int chunkShift; // log2 of the number of slices in a chunk
+    private final int chunkMask;  // the number of slices in a chunk - 1
+    private final FloatBuffer[] chunks;
+
+    /**
+     * Constructs a new <code>FlatVolume</code> of the given dimensions. All values will be 0.
+     *
+     * @param xSize
+     *         the size in x
+     * @param ySize
+     *         the size in y
+     * @param zSize
+     *         the size in z
+     *
+     * @throws IllegalArgumentException
+     *         if any of the sizes is negative or a single slice does not fit into a chunk
+     */
+    public FlatVolume(int xSize, int ySize, int zSize) {
+        this(xSize, ySize, zSize, null);
+    }
+
+    /**
+     * Constructs a new <code>FlatVolume</code> of the given dimensions that uses the remaining bytes of
+     * <code>data</code> as its backing memory. The values are read in the byte order of <code>data</code>. No
+     * values are copied, changes to <code>data</code> will be visible in the <code>FlatVolume</code> and vice versa.
+     *
+     * @param data
+     *         the values of the volume
+     * @param xSize
+     *         the size in x
+     * @param ySize
+     *         the size in y
+     * @param zSize
+     *         the size in z
+     *
+     * @throws IllegalArgumentException
+     *         if any of the sizes is negative or <code>data</code> does not contain enough bytes
+     */
+    public FlatVolume(ByteBuffer data, int xSize, int ySize, int zSize) {
+        this(xSize, ySize, zSize, data);
+    }
+
+    /**
+     * Constructs a new <code>FlatVolume</code>. If <code>data</code> is <code>null</code> the chunks will be
+     * allocated, otherwise they will be views of <code>data</code>.
+     *
+     * @param xSize
+     *         the size in x
+     * @param ySize
+     *         the size in y
+     * @param zSize
+     *         the size in z
+     * @param data
+     *         the values of the volume or <code>null</code>
+     */
+    private FlatVolume(int xSize, int ySize, int zSize, ByteBuffer data) {
+
+        if (zSize < 0) {
+            throw new IllegalArgumentException("The sizes must not be negative!");
+        }
+
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.zSize = zSize;
+        this.sliceSize = xSize * ySize;
+
+        int slicesPerChunk = slicesPerChunk(xSize, ySize);
+
+        this.chunkShift = Integer.numberOfTrailingZeros(slicesPerChunk);
+        this.chunkMask = slicesPerChunk - 1;
+
+        int numChunks = (zSize == 0) ? 0 : (zSize - 1) / slicesPerChunk + 1;
+        this.chunks = new FloatBuffer[numChunks];
+
+        if (data != null && data.remaining() < (long) sliceSize * zSize * 4) {
+            throw new IllegalArgumentException("data contains only " + data.remaining() + " bytes!");
+        }
+
+        for (int i = 0; i < numChunks; i++) {
+            int chunkBytes = Math.min(slicesPerChunk, zSize - i * slicesPerChunk) * sliceSize * 4;
+
+            if (data == null) {
+                chunks[i] = Buffers.allocateByteBuffer(chunkBytes).asFloatBuffer();
+            } else {
+                ByteBuffer chunk = data.duplicate();
+                chunk.position(data.position() + i * slicesPerChunk * sliceSize * 4);
+                chunk.limit(chunk.position() + chunkBytes);
+                chunks[i] = chunk.slice().order(data.order()).asFloatBuffer();
+            }
+        }
+    }
+
+    /**
+     * Constructs a new <code>FlatVolume</code> of the given dimensions backed by a read-only memory mapping of the
+     * given file region. The file must contain <code>xSize * ySize * zSize</code> floats in the given byte order
+     * starting at <code>position</code>.
+     *
+     * @param channel
+     *         the channel of the file to be mapped
+     * @param position
+     *         the position of the first value in the file
+     * @param order
+     *         the byte order of the values in the file
+     * @param xSize
+     *         the size in x
+     * @param ySize
+     *         the size in y
+     * @param zSize
+     *         the size in z
+     *
+     * @return the <code>FlatVolume</code>
+     *
+     * @throws IOException
+     *         if the file can not be mapped
+     */
+    public static FlatVolume map(FileChannel channel, long position, ByteOrder order, int xSize, int ySize, int zSize)
+            throws IOException {
+
+        if (zSize < 0) {
+            throw new IllegalArgumentException("The sizes must not be negative!");
+        }
+
+        int slicesPerChunk = slicesPerChunk(xSize, ySize);
+        FloatBuffer[] chunks = new FloatBuffer[(zSize == 0) ? 0 : (zSize - 1) / slicesPerChunk + 1];
+        long chunkPosition = position;
+
+        for (int i = 0; i < chunks.length; i++) {
+            int chunkBytes = Math.min(slicesPerChunk, zSize - i * slicesPerChunk) * xSize * ySize * 4;
+
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, chunkPosition, chunkBytes).order(order)
+                    .asFloatBuffer();
+            chunkPosition += chunkBytes;
+        }
+
+        return new FlatVolume(xSize, ySize, zSize, slicesPerChunk, chunks);
+    }
+
+    /**
+     * Returns the largest power of 2 of whole slices of the given dimensions that fit into a chunk.
+     *
+     * @param xSize
+     *         the size in x
+     * @param ySize
+     *         the size in y
+     *
+     * @return the number of slices per chunk
+     *
+     * @throws IllegalArgumentException
+     *         if any of the sizes is negative or a single slice does not fit into a chunk
+     */
+    private static int slicesPerChunk(int xSize, int ySize) {
+
+        if (xSize < 0 || ySize < 0) {
+            throw new IllegalArgumentException("The sizes must not be negative!");
+        }
+
+        if ((long) xSize * ySize * 4 > MAX_CHUNK_BYTES) {
+            throw new IllegalArgumentException("A slice of " + xSize + "x" + ySize + " values is too large!");
+        }
+
+        return Integer.highestOneBit((xSize * ySize == 0) ? Integer.MAX_VALUE : MAX_CHUNK_BYTES / (xSize * ySize * 4));
+    }
+
+    /**
+     * Constructs a new <code>FlatVolume</code> from the given chunks.
+     *
+     * @param xSize
+     *         the size in x
+     * @param ySize
+     *         the size in y
+     * @param zSize
+     *         the size in z
+     * @param slicesPerChunk
+     *         the number of slices in every chunk but the last one, a power of 2
+     * @param chunks
+     *         the chunks
+     */
+    private FlatVolume(int xSize, int ySize, int zSize, int slicesPerChunk, FloatBuffer[] chunks) {
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.zSize = zSize;
+        this.sliceSize = xSize * ySize;
+        this.chunkShift = Integer.numberOfTrailingZeros(slicesPerChunk);
+        this.chunkMask = slicesPerChunk - 1;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Sets the value at the given position.
+     *
+     * @param x
+     *         the x coordinate
+     * @param y
+     *         the y coordinate
+     * @param z
+     *         the z coordinate
+     * @param value
+     *         the new value
+     *
+     * @throws IndexOutOfBoundsException
+     *         if the position is out of bounds
+     */
+    public void set(int x, int y, int z, float value) {
+
+        if (x < 0 || x >= xSize || y < 0 || y >= ySize || z < 0 || z >= zSize) {
+            throw new IndexOutOfBoundsException("(" + x + ", " + y + ", " + z + ") is out of bounds!");
+        }
+
+        chunks[z >>> chunkShift].put((z & chunkMask) * sliceSize + y * xSize + x, value);
+    }
+
+    /**
+     * Returns a view of the slice with index <code>z</code>. The <code>FloatBuffer</code> contains the
+     * <code>xSize * ySize</code> values of the slice, x varies fastest. Its position and limit are independent of
+     * this <code>FlatVolume</code>.
+     *
+     * @param z
+     *         the slice index
+     *
+     * @return the slice
+     */
+    public FloatBuffer slice(int z) {
+        FloatBuffer slice = chunks[z >>> chunkShift].duplicate();
+        int start = (z & chunkMask) * sliceSize;
+
+        slice.limit(start + sliceSize);
+        slice.position(start);
+
+        return slice.slice();
+    }
+
+    /**
+     * Copies the given rows of values into the slice with index <code>z</code>.
+     *
+     * @param z
+     *         the slice index
+     * @param rows
+     *         the rows of the slice, every row must contain <code>xSize</code> values
+     */
+    public void setSlice(int z, float[][] rows) {
+        FloatBuffer slice = slice(z);
+
+        for (int y = 0; y < ySize; y++) {
+            slice.put(rows[y], 0, xSize);
+        }
+    }
+
+    @Override
+    public float value(int x, int y, int z) {
+
+        if (z < 0 || z >= zSize) {
+            return 0f;
+        }
+
+        if (y < 0 || y >= ySize) {
+            return 0f;
+        }
+
+        if (x < 0 || x >= xSize) {
+            return 0f;
+        }
+
+        return chunks[z >>> chunkShift].get((z & chunkMask) * sliceSize + y * xSize + x);
+    }
+
+    @Override
+    public int xSize() {
+        return xSize;
+    }
+
+    @Override
+    public int ySize() {
+        return ySize;
+    }
+
+    @Override
+    public int zSize() {
+        return zSize;
+    }
+}
@@ -0,0 +1,257 @@
+package de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A <code>MCVolume</code> that computes its values from a <code>SlabSource</code> when they are first requested.
+ * The volume is split into slabs of a fixed number of slices, only the slabs most recently requested are kept, so
+ * the memory used does not depend on the size of the volume and the first values are available after computing
+ * a single slab.
+ * <p>
+ * The <code>MCRunner</code> requests the slices in increasing z order. Whenever a value of a slab beyond the highest
+ * one requested so far is requested, the following slabs are computed ahead on background threads. Cubes spanning
+ * two slabs therefore do not trigger the prefetching again, requesting the first slab after a slab outside of the
+ * prefetched ones starts over with the next pass over the volume. A slab that is being computed by one thread is
+ * never computed by another one at the same time.
+ */
+public class LazyVolume implements MCVolume {
+
+    /**
+     * A cached slab.
+     */
+    private static class Slab {
+
+        private final CompletableFuture<float[]> values = new CompletableFuture<>();
+        private volatile long lastAccess; // the value of the clock when the slab was last requested
+    }
+
+    /**
+     * The number of slabs computed ahead of the currently requested one.
+     */
+    public static final int PREFETCH_SLABS = 2;
+
+    private static final ExecutorService prefetcher = Executors.newFixedThreadPool(PREFETCH_SLABS, r -> {
+        Thread thread = new Thread(r, "LazyVolume Prefetcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final SlabSource source;
+    private final int xSize;
+    private final int ySize;
+    private final int zSize;
+    private final int slabSize;
+    private final int maxSlabs;
+
+    private final AtomicReferenceArray<Slab> slabs;
+    private final AtomicInteger cachedSlabs;
+    private final AtomicLong clock; // advanced whenever a different slab is requested
+
+    private volatile int current; // the index of the slab requested last
+    private volatile int highest; // the highest index of a slab requested in the current pass
+
+    /**
+     * Constructs a new <code>LazyVolume</code> taking its values from the given <code>SlabSource</code>. The cached
+     * slabs occupy at most <code>maxBytes</code> bytes, but at least the current slab, the ones being computed ahead
+     * and the one before it are always cached.
+     *
+     * @param source the <code>SlabSource</code> to compute the values with
+     * @param slabSize the number of slices in a slab
+     * @param maxBytes the maximum size of the cached slabs in bytes
+     * @throws IllegalArgumentException if <code>slabSize</code> is smaller than 1
+     */
+    public LazyVolume(SlabSource source, int slabSize, long maxBytes) {
+
+        if (slabSize < 1) {
+            throw new IllegalArgumentException("slabSize must be greater or equal to 1!");
+        }
+
+        this.source = source;
+        this.xSize = source.xSize();
+        this.ySize = source.ySize();
+        this.zSize = source.zSize();
+        this.slabSize = slabSize;
+
+        long slabBytes = Math.max(1, 4L * xSize * ySize * slabSize);
+
+        this.maxSlabs = (int) Math.max(PREFETCH_SLABS + 2, Math.min(Integer.MAX_VALUE, maxBytes / slabBytes));
+        this.slabs = new AtomicReferenceArray<>((zSize + slabSize - 1) / slabSize);
+        this.cachedSlabs = new AtomicInteger();
+        this.clock = new AtomicLong();
+        this.current = -1;
+        this.highest = -1;
+    }
+
+    /**
+     * Returns the values of the slab with index i, computing it if necessary.
+     *
+     * @param i the slab index
+     * @return the values of the slab
+     */
+    private float[] slab(int i) {
+
+        while (true) {
+            Slab slab = slabs.get(i);
+            boolean computer = false;
+
+            if (slab == null) {
+                Slab created = new Slab();
+
+                if (slabs.compareAndSet(i, null, created)) {
+                    slab = created;
+                    computer = true;
+                } else {
+                    continue;
+                }
+            }
+
+            if (computer) {
+                compute(i, slab);
+            }
+
+            if (i != current) {
+                current = i;
+                slab.lastAccess = clock.incrementAndGet();
+
+                if (i > highest || i == 0 && highest > PREFETCH_SLABS) {
+                    highest = i;
+                    prefetch(i);
+                }
+            }
+
+            try {
+                return slab.values.join();
+            } catch (CompletionException e) {
+                slabs.compareAndSet(i, slab, null);
+
+                if (computer) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the values of the slab with index i into <code>slab</code> and evicts slabs if there are too many.
+     *
+     * @param i the slab index
+     * @param slab the cache entry to store the values in
+     */
+    private void compute(int i, Slab slab) {
+        int z0 = i * slabSize;
+        int z1 = Math.min(z0 + slabSize, zSize);
+        float[] values;
+
+        try {
+            values = new float[(z1 - z0) * ySize * xSize];
+            source.computeSlab(z0, z1, values);
+        } catch (RuntimeException | OutOfMemoryError e) {
+            slab.values.completeExceptionally(e);
+            return;
+        }
+
+        slab.lastAccess = clock.incrementAndGet();
+        cachedSlabs.incrementAndGet();
+        slab.values.complete(values);
+
+        evict(i);
+    }
+
+    /**
+     * Submits the slabs following slab i that are not cached yet to the prefetching threads.
+     *
+     * @param i the slab index
+     */
+    private void prefetch(int i) {
+
+        for (int next = i + 1; next <= i + PREFETCH_SLABS && next < slabs.length(); next++) {
+
+            if (slabs.get(next) != null) {
+                continue;
+            }
+
+            Slab created = new Slab();
+            int index = next;
+
+            if (slabs.compareAndSet(next, null, created)) {
+                prefetcher.submit(() -> compute(index, created));
+            }
+        }
+    }
+
+    /**
+     * Removes the least recently used slabs until at most <code>maxSlabs</code> slabs are cached. Slabs that are
+     * still being computed and the slab <code>keep</code> are not removed.
+     *
+     * @param keep the index of the slab to keep
+     */
+    private void evict(int keep) {
+
+        synchronized (slabs) {
+
+            while (cachedSlabs.get() > maxSlabs) {
+                int eldest = -1;
+
+                for (int i = 0; i < slabs.length(); i++) {
+                    Slab slab = slabs.get(i);
+
+                    if (i == keep || slab == null || !slab.values.isDone() || slab.values.isCompletedExceptionally()) {
+                        continue;
+                    }
+
+                    if (eldest == -1 || slab.lastAccess < slabs.get(eldest).lastAccess) {
+                        eldest = i;
+                    }
+                }
+
+                if (eldest == -1) {
+                    return;
+                }
+
+                slabs.set(eldest, null);
+                cachedSlabs.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public float value(int x, int y, int z) {
+
+        if (z < 0 || z >= zSize) {
+            return 0f;
+        }
+
+        if (y < 0 || y >= ySize) {
+            return 0f;
+        }
+
+        if (x < 0 || x >= xSize) {
+            return 0f;
+        }
+
+        int i = z / slabSize;
+
+        return slab(i)[((z - i * slabSize) * ySize + y) * xSize + x];
+    }
+
+    @Override
+    public int xSize() {
+        return xSize;
+    }
+
+    @Override
+    public int ySize() {
+        return ySize;
+    }
+
+    @Override
+    public int zSize() {
+        return zSize;
+    }
+}
@@ -0,0 +1,264 @@
+package de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume;
+
+import java.nio.ShortBuffer;
+
+import de.uni_passau.fim.seibt.v8.util.Buffers;
+
+/**
+ * A <code>MCVolume</code> storing 16 bit integer samples, one <code>ShortBuffer</code> per slice. Samples are
+ * converted to floats when they are read. The conversion first applies the rescale slope and intercept
+ * (default 1 and 0) and then, if a window was set, the linear DICOM VOI window function mapping the window to the
+ * range 0 - 255.
+ */
+public class ShortVolume implements MCVolume {
+
+    private final int xSize;
+    private final int ySize;
+    private final ShortBuffer[] slices;
+    private final boolean signed;
+
+    private float slope;
+    private float intercept;
+
+    private boolean windowed;
+    private float windowCenter;
+    private float windowWidth;
+    private float windowLow;  // rescaled values smaller than or equal to this map to 0
+    private float windowHigh; // rescaled values greater than this map to 255
+    private float windowScale;
+
+    /**
+     * Constructs a new <code>ShortVolume</code> of the given dimensions. All samples will be 0.
+     *
+     * @param xSize
+     *         the size in x
+     * @param ySize
+     *         the size in y
+     * @param zSize
+     *         the size in z
+     * @param signed
+     *         whether the samples are signed (two's complement) or unsigned
+     */
+    public ShortVolume(int xSize, int ySize, int zSize, boolean signed) {
+        this(allocateSlices(xSize * ySize, zSize), xSize, ySize, signed);
+    }
+
+    /**
+     * Constructs a new <code>ShortVolume</code> backed by the given slices. Every slice must contain
+     * <code>xSize * ySize</code> samples starting at index 0, x varies fastest. The slices are not copied.
+     *
+     * @param slices
+     *         the slices of the volume
+     * @param xSize
+     *         the size in x
+     * @param ySize
+     *         the size in y
+     * @param signed
+     *         whether the samples are signed (two's complement) or unsigned
+     *
+     * @throws IllegalArgumentException
+     *         if a slice does not contain enough samples
+     */
+    public ShortVolume(ShortBuffer[] slices, int xSize, int ySize, boolean signed) {
+
+        for (ShortBuffer slice : slices) {
+            if (slice.capacity() < xSize * ySize) {
+                throw new IllegalArgumentException("Every slice must contain " + xSize * ySize + " samples!");
+            }
+        }
+
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.slices = slices;
+        this.signed = signed;
+        this.slope = 1;
+        this.intercept = 0;
+        this.windowed = false;
+    }
+
+    /**
+     * Allocates <code>zSize</code> slices of the given size.
+     *
+     * @param sliceSize
+     *         the number of samples in a slice
+     * @param zSize
+     *         the number of slices
+     *
+     * @return the slices
+     */
+    private static ShortBuffer[] allocateSlices(int sliceSize, int zSize) {
+        ShortBuffer[] slices = new ShortBuffer[zSize];
+
+        for (int z = 0; z < zSize; z++) {
+            slices[z] = Buffers.allocateShortBuffer(sliceSize);
+        }
+
+        return slices;
+    }
+
+    /**
+     * Sets the rescale slope and intercept. A sample s is rescaled to <code>s * slope + intercept</code>.
+     *
+     * @param slope
+     *         the rescale slope
+     * @param intercept
+     *         the rescale intercept
+     */
+    public void setRescale(float slope, float intercept) {
+        this.slope = slope;
+        this.intercept = intercept;
+    }
+
+    /**
+     * Sets the window that maps the rescaled samples to the range 0 - 255 using the linear VOI LUT function of the
+     * DICOM standard (PS3.3 C.11.2.1.2).
+     *
+     * @param center
+     *         the window center
+     * @param width
+     *         the window width, must be greater than or equal to 1
+     *
+     * @throws IllegalArgumentException
+     *         if <code>width</code> is smaller than 1
+     */
+    public void setWindow(float center, float width) {
+
+        if (!(width >= 1)) {
+            throw new IllegalArgumentException("width must be greater or equal to 1!");
+        }
+
+        this.windowed = true;
+        this.windowCenter = center;
+        this.windowWidth = width;
+        this.windowLow = center - 0.5f - (width - 1) / 2;
+        this.windowHigh = center - 0.5f + (width - 1) / 2;
+        this.windowScale = (width > 1) ? 255 / (width - 1) : 0;
+    }
+
+    /**
+     * Removes the window, values will be the rescaled samples.
+     */
+    public void clearWindow() {
+        this.windowed = false;
+    }
+
+    /**
+     * Returns the slice with index <code>z</code>. The <code>ShortBuffer</code> contains the
+     * <code>xSize * ySize</code> samples of the slice, x varies fastest. Its position and limit are independent of
+     * this <code>ShortVolume</code>, so it may be used to fill the slice.
+     *
+     * @param z
+     *         the slice index
+     *
+     * @return the slice
+     */
+    public ShortBuffer slice(int z) {
+        ShortBuffer slice = slices[z].duplicate();
+
+        slice.clear();
+        slice.limit(xSize * ySize);
+
+        return slice;
+    }
+
+    /**
+     * Returns the rescale slope.
+     *
+     * @return the rescale slope
+     */
+    public float getRescaleSlope() {
+        return slope;
+    }
+
+    /**
+     * Returns the rescale intercept.
+     *
+     * @return the rescale intercept
+     */
+    public float getRescaleIntercept() {
+        return intercept;
+    }
+
+    /**
+     * Returns whether a window is set.
+     *
+     * @return true iff a window is set
+     */
+    public boolean isWindowed() {
+        return windowed;
+    }
+
+    /**
+     * Returns the center of the window last set.
+     *
+     * @return the window center
+     */
+    public float getWindowCenter() {
+        return windowCenter;
+    }
+
+    /**
+     * Returns the width of the window last set.
+     *
+     * @return the window width
+     */
+    public float getWindowWidth() {
+        return windowWidth;
+    }
+
+    /**
+     * Returns whether the samples are signed.
+     *
+     * @return true iff the samples are signed
+     */
+    public boolean isSigned() {
+        return signed;
+    }
+
+    @Override
+    public float value(int x, int y, int z) {
+
+        if (z < 0 || z >= zSize()) {
+            return 0f;
+        }
+
+        if (y < 0 || y >= ySize) {
+            return 0f;
+        }
+
+        if (x < 0 || x >= xSize) {
+            return 0f;
+        }
+
+        short sample = slices[z].get(y * xSize + x);
+        float value = (signed ? sample : sample & 0xffff) * slope + intercept;
+
+        if (windowed) {
+
+            if (value <= windowLow) {
+                return 0f;
+            } else if (value > windowHigh) {
+                return 255f;
+            } else {
+                return (value - windowLow) * windowScale;
+            }
+        }
+
+        return value;
+    }
+
+    @Override
+    public int xSize() {
+        return xSize;
+    }
+
+    @Override
+    public int ySize() {
+        return ySize;
+    }
+
+    @Override
+    public int zSize() {
+        return slices.length;
+    }
+}
@@ -0,0 +1,41 @@
+package de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume;
+
+/**
+ * A source of volume data that computes its values on demand, a slab of consecutive slices at a time.
+ * Implementations must allow multiple slabs to be computed at the same time by different threads.
+ *
+ * @see LazyVolume
+ */
+public interface SlabSource {
+
+    /**
+     * Computes the values of the slices <code>z0</code> (inclusive) to <code>z1</code> (exclusive) and stores them
+     * in <code>values</code>, x varies fastest, followed by y and z.
+     *
+     * @param z0 the index of the first slice
+     * @param z1 the index after the last slice
+     * @param values the array to store the <code>(z1 - z0) * ySize() * xSize()</code> values in
+     */
+    void computeSlab(int z0, int z1, float[] values);
+
+    /**
+     * Returns the size of the volume in x.
+     *
+     * @return the size in x
+     */
+    int xSize();
+
+    /**
+     * Returns the size of the volume in y.
+     *
+     * @return the size in y
+     */
+    int ySize();
+
+    /**
+     * Returns the size of the volume in z.
+     *
+     * @return the size in z
+     */
+    int zSize();
+}
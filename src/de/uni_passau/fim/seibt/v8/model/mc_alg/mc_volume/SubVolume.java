@@ -0,0 +1,65 @@
+package de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume;
+
+/**
+ * A <code>MCVolume</code> showing a box of another <code>MCVolume</code>. Position (0, 0, 0) of the
+ * <code>SubVolume</code> is position (x0, y0, z0) of the source. Positions outside of the box but inside of the
+ * source return the values of the source, so gradients computed at the border of the box match the ones computed in
+ * the source.
+ */
+public class SubVolume implements MCVolume {
+
+    private final MCVolume source;
+    private final int x0;
+    private final int y0;
+    private final int z0;
+    private final int xSize;
+    private final int ySize;
+    private final int zSize;
+
+    /**
+     * Constructs a new <code>SubVolume</code> of the given source.
+     *
+     * @param source the volume to take the values from
+     * @param x0 the x coordinate of the box in the source
+     * @param y0 the y coordinate of the box in the source
+     * @param z0 the z coordinate of the box in the source
+     * @param xSize the size of the box in x
+     * @param ySize the size of the box in y
+     * @param zSize the size of the box in z
+     * @throws IllegalArgumentException if any of the sizes is negative
+     */
+    public SubVolume(MCVolume source, int x0, int y0, int z0, int xSize, int ySize, int zSize) {
+
+        if (xSize < 0 || ySize < 0 || zSize < 0) {
+            throw new IllegalArgumentException("The sizes must not be negative!");
+        }
+
+        this.source = source;
+        this.x0 = x0;
+        this.y0 = y0;
+        this.z0 = z0;
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.zSize = zSize;
+    }
+
+    @Override
+    public float value(int x, int y, int z) {
+        return source.value(x0 + x, y0 + y, z0 + z);
+    }
+
+    @Override
+    public int xSize() {
+        return xSize;
+    }
+
+    @Override
+    public int ySize() {
+        return ySize;
+    }
+
+    @Override
+    public int zSize() {
+        return zSize;
+    }
+}
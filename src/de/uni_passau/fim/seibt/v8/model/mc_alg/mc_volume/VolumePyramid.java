@@ -0,0 +1,152 @@
+package de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume;
+
+import java.nio.FloatBuffer;
+import java.util.Objects;
+import java.util.stream.IntStream;
+
+/**
+ * A mip pyramid over a <code>MCVolume</code>. Level 0 is the volume itself, every further level halves the size of
+ * the previous one in x, y and z by combining blocks of 2x2x2 values using a <code>Filter</code>. Value (x, y, z) of
+ * level k covers the values (x * 2^k, y * 2^k, z * 2^k) to ((x + 1) * 2^k - 1, ...) of level 0. Levels are built in
+ * parallel the first time they are requested and are stored in <code>FlatVolume</code>s.
+ */
+public class VolumePyramid {
+
+    /**
+     * The filter used to combine a block of values into one value of the next level.
+     */
+    public enum Filter {
+
+        /**
+         * The average of the values in the block.
+         */
+        BOX,
+
+        /**
+         * The maximum of the values in the block, keeps thin structures of high values visible.
+         */
+        MAX
+    }
+
+    private final MCVolume[] levels;
+    private final Filter filter;
+
+    /**
+     * Constructs a new <code>VolumePyramid</code> over the given volume.
+     *
+     * @param source
+     *         the volume forming level 0
+     * @param numLevels
+     *         the number of levels including level 0
+     * @param filter
+     *         the <code>Filter</code> used to build the levels
+     *
+     * @throws IllegalArgumentException
+     *         if <code>numLevels</code> is smaller than 1
+     */
+    public VolumePyramid(MCVolume source, int numLevels, Filter filter) {
+        Objects.requireNonNull(source, "source must not be null!");
+        Objects.requireNonNull(filter, "filter must not be null!");
+
+        if (numLevels < 1) {
+            throw new IllegalArgumentException("numLevels must be greater or equal to 1!");
+        }
+
+        this.levels = new MCVolume[numLevels];
+        this.levels[0] = source;
+        this.filter = filter;
+    }
+
+    /**
+     * Returns the number of levels of this <code>VolumePyramid</code> including level 0.
+     *
+     * @return the number of levels
+     */
+    public int numLevels() {
+        return levels.length;
+    }
+
+    /**
+     * Returns level <code>k</code> of this <code>VolumePyramid</code>, building it and the levels below it if
+     * necessary.
+     *
+     * @param k
+     *         the level
+     *
+     * @return the volume of the level
+     *
+     * @throws IndexOutOfBoundsException
+     *         if there is no level <code>k</code>
+     */
+    public synchronized MCVolume level(int k) {
+
+        if (levels[k] == null) {
+            levels[k] = downsample(level(k - 1), filter);
+        }
+
+        return levels[k];
+    }
+
+    /**
+     * Returns the coarsest level whose distance between two values divides <code>gridSize</code>, so sampling it
+     * with a grid size of <code>gridSize</code> divided by that distance samples the same positions as level 0. For
+     * odd grid sizes this is level 0.
+     *
+     * @param gridSize
+     *         the distance between the sampled values of level 0
+     *
+     * @return the level
+     */
+    public int levelFor(int gridSize) {
+        int k = 0;
+
+        while (k + 1 < levels.length && gridSize % (2 << k) == 0) {
+            k++;
+        }
+
+        return k;
+    }
+
+    /**
+     * Computes the next coarser level of the given volume.
+     *
+     * @param source
+     *         the volume to downsample
+     * @param filter
+     *         the <code>Filter</code> to use
+     *
+     * @return the downsampled volume
+     */
+    private static FlatVolume downsample(MCVolume source, Filter filter) {
+        int xSize = source.xSize();
+        int ySize = source.ySize();
+        int zSize = source.zSize();
+        FlatVolume target = new FlatVolume((xSize + 1) / 2, (ySize + 1) / 2, (zSize + 1) / 2);
+
+        IntStream.range(0, target.zSize()).parallel().forEach(z -> {
+            FloatBuffer slice = target.slice(z);
+
+            for (int y = 0; y < target.ySize(); y++) {
+                for (int x = 0; x < target.xSize(); x++) {
+                    float result = (filter == Filter.MAX) ? Float.NEGATIVE_INFINITY : 0;
+                    int count = 0;
+
+                    for (int sz = 2 * z; sz < Math.min(2 * z + 2, zSize); sz++) {
+                        for (int sy = 2 * y; sy < Math.min(2 * y + 2, ySize); sy++) {
+                            for (int sx = 2 * x; sx < Math.min(2 * x + 2, xSize); sx++) {
+                                float value = source.value(sx, sy, sz);
+
+                                result = (filter == Filter.MAX) ? Math.max(result, value) : result + value;
+                                count++;
+                            }
+                        }
+                    }
+
+                    slice.put((filter == Filter.MAX) ? result : result / count);
+                }
+            }
+        });
+
+        return target;
+    }
+}
@@ -0,0 +1,126 @@
+package de.uni_passau.fim.seibt.v8.model.mc_alg.metaball_volume;
+
+/**
+ * The falloff functions a <code>MetaBall</code> may use. All functions are 1 at the center of the ball. Except for
+ * <code>INVERSE_SQUARE</code> they have bounded support, they reach 0 at the radius of the ball and stay 0 beyond
+ * it, so balls far away from a position do not have to be visited to compute its value.
+ */
+public enum Falloff {
+
+    /**
+     * 1 / r^2, the classic metaball falloff. It has unbounded support unless the ball has a finite radius, in which
+     * case it is cut off at the radius.
+     */
+    INVERSE_SQUARE {
+        @Override
+        float value(float intensity, float distance2, float radius) {
+
+            if (distance2 >= radius * radius) {
+                return 0;
+            }
+
+            return (distance2 == 0) ? intensity : intensity / distance2;
+        }
+
+        @Override
+        void addRow(float[] values, int offset, int count, int dx, float dyz2, float intensity, float radius) {
+
+            for (int i = 0; i < count; i++) {
+                float d = dx + i;
+
+                // squared distances are integers, so the maximum only replaces the 0 at the center
+                values[offset + i] += intensity / Math.max(d * d + dyz2, 1f);
+            }
+        }
+    },
+
+    /**
+     * (1 - r^2 / R^2)^3, the soft object falloff by Wyvill et al.
+     */
+    WYVILL {
+        @Override
+        float value(float intensity, float distance2, float radius) {
+            float t = 1 - distance2 / (radius * radius);
+
+            return (t <= 0) ? 0 : intensity * t * t * t;
+        }
+
+        @Override
+        void addRow(float[] values, int offset, int count, int dx, float dyz2, float intensity, float radius) {
+            float radius2 = radius * radius;
+
+            for (int i = 0; i < count; i++) {
+                float d = dx + i;
+                float t = 1 - (d * d + dyz2) / radius2;
+
+                values[offset + i] += intensity * t * t * t;
+            }
+        }
+    },
+
+    /**
+     * (1 - r / R)^4 (4 r / R + 1), the C2 continuous Wendland function.
+     */
+    WENDLAND {
+        @Override
+        float value(float intensity, float distance2, float radius) {
+            float q = (float) Math.sqrt(distance2) / radius;
+
+            if (q >= 1) {
+                return 0;
+            }
+
+            float t = (1 - q) * (1 - q);
+
+            return intensity * t * t * (4 * q + 1);
+        }
+
+        @Override
+        void addRow(float[] values, int offset, int count, int dx, float dyz2, float intensity, float radius) {
+
+            for (int i = 0; i < count; i++) {
+                float d = dx + i;
+                float q = (float) Math.sqrt(d * d + dyz2) / radius;
+                float s = Math.max(0, 1 - q); // q may round up to slightly above 1 at the radius
+                float t = s * s;
+
+                values[offset + i] += intensity * t * t * (4 * q + 1);
+            }
+        }
+    };
+
+    /**
+     * Computes the value of a ball at the given squared distance from its center.
+     *
+     * @param intensity
+     *         the intensity of the ball, its value at the center
+     * @param distance2
+     *         the squared distance from the center of the ball
+     * @param radius
+     *         the radius of the ball, may be infinite for <code>INVERSE_SQUARE</code>
+     *
+     * @return the value
+     */
+    abstract float value(float intensity, float distance2, float radius);
+
+    /**
+     * Adds the values of a ball to consecutive positions of a row. All positions must lie within the radius of the
+     * ball, the loop does not check for it so that it contains no branches and can be vectorized.
+     *
+     * @param values
+     *         the array to add the values to
+     * @param offset
+     *         the index in <code>values</code> of the first position
+     * @param count
+     *         the number of positions
+     * @param dx
+     *         the x distance of the first position from the center of the ball, it increases by 1 per position
+     * @param dyz2
+     *         the squared distance of the row from the center of the ball in y and z
+     * @param intensity
+     *         the intensity of the ball
+     * @param radius
+     *         the radius of the ball
+     */
+    abstract void addRow(float[] values, int offset, int count, int dx, float dyz2, float intensity, float radius);
+}
@@ -3,7 +3,8 @@ package de.uni_passau.fim.seibt.v8.model.mc_alg.metaball_volume;
 /**
  * A <code>MetaBall</code> in a <code>MetaBallVolume</code>.
  * The intensity is a multiplicative term in the value equation. It may be negative if a <code>MetaBall</code>
- * that's affecting the value of the volume negatively is desired.
+ * that's affecting the value of the volume negatively is desired. The value falls off with the distance from the
+ * center according to a <code>Falloff</code>, by default <code>INVERSE_SQUARE</code> with unbounded support.
  *
  * @see <a href="http://en.wikipedia.org/wiki/Metaballs">Metaballs</a>
  */
@@ -13,6 +14,8 @@ public class MetaBall {
     private final int y_pos;
     private final int z_pos;
     private final int intensity;
+    private final Falloff falloff;
+    private final float radius;
 
     /**
      * Constructs a new <code>MetaBall</code> of value 1.
@@ -34,10 +37,129 @@ public class MetaBall {
      * @param intensity the intensity for the ball (see class documentation for a description of its affect)
      */
     public MetaBall(int x, int y, int z, int intensity) {
+        this(x, y, z, intensity, Falloff.INVERSE_SQUARE, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Constructs a new <code>MetaBall</code> of the given value using the given <code>Falloff</code>.
+     *
+     * @param x the x coordinate of the center of the ball
+     * @param y the y coordinate of the center of the ball
+     * @param z the z coordinate of the center of the ball
+     * @param intensity the intensity for the ball (see class documentation for a description of its affect)
+     * @param falloff the <code>Falloff</code> for the ball
+     * @param radius the distance from the center beyond which the value of the ball is 0, may be infinite only for
+     *               <code>INVERSE_SQUARE</code>
+     * @throws IllegalArgumentException if <code>radius</code> is not positive or infinite for a bounded falloff
+     */
+    public MetaBall(int x, int y, int z, int intensity, Falloff falloff, float radius) {
+
+        if (!(radius > 0) || (falloff != Falloff.INVERSE_SQUARE && Float.isInfinite(radius))) {
+            throw new IllegalArgumentException("radius must be positive and finite for a bounded falloff!");
+        }
+
         this.x_pos = x;
         this.y_pos = y;
         this.z_pos = z;
         this.intensity = intensity;
+        this.falloff = falloff;
+        this.radius = radius;
+    }
+
+    /**
+     * Returns whether the value of this <code>MetaBall</code> is 0 beyond a finite radius.
+     *
+     * @return true iff the support of the ball is bounded
+     */
+    boolean isBounded() {
+        return !Float.isInfinite(radius);
+    }
+
+    /**
+     * Returns the radius beyond which the value of this <code>MetaBall</code> is 0.
+     *
+     * @return the radius, infinite if the ball is not bounded
+     */
+    float getRadius() {
+        return radius;
+    }
+
+    /**
+     * Returns the x coordinate of the center of this <code>MetaBall</code>.
+     *
+     * @return the x coordinate
+     */
+    int getX() {
+        return x_pos;
+    }
+
+    /**
+     * Returns the y coordinate of the center of this <code>MetaBall</code>.
+     *
+     * @return the y coordinate
+     */
+    int getY() {
+        return y_pos;
+    }
+
+    /**
+     * Returns the z coordinate of the center of this <code>MetaBall</code>.
+     *
+     * @return the z coordinate
+     */
+    int getZ() {
+        return z_pos;
+    }
+
+    /**
+     * Returns the largest x distance from the center at which the value of this <code>MetaBall</code> in the row
+     * (y, z) is not 0.
+     *
+     * @param y the y coordinate of the row
+     * @param z the z coordinate of the row
+     * @return the distance, -1 if the row does not intersect the ball or <code>Integer.MAX_VALUE</code> if the ball
+     *         is not bounded
+     */
+    int halfWidth(int y, int z) {
+
+        if (!isBounded()) {
+            return Integer.MAX_VALUE;
+        }
+
+        int dy = y - y_pos;
+        int dz = z - z_pos;
+        float dyz2 = dy * dy + dz * dz;
+        float radius2 = radius * radius;
+        int halfWidth = (int) Math.sqrt(Math.max(0, radius2 - dyz2));
+
+        // correct rounding errors of the square root, a position is inside iff its squared distance is < radius2
+        while (halfWidth >= 0 && (float) halfWidth * halfWidth + dyz2 >= radius2) {
+            halfWidth--;
+        }
+
+        while ((float) (halfWidth + 1) * (halfWidth + 1) + dyz2 < radius2) {
+            halfWidth++;
+        }
+
+        return halfWidth;
+    }
+
+    /**
+     * Adds the values of this <code>MetaBall</code> at the positions x0 to x1 of the row (y, z) to the given array.
+     * The positions must not be farther away from the center in x than <code>halfWidth(y, z)</code>.
+     *
+     * @param values the array to add the values to
+     * @param offset the index in <code>values</code> for the position x0
+     * @param x0 the first x coordinate
+     * @param x1 the last x coordinate
+     * @param y the y coordinate of the row
+     * @param z the z coordinate of the row
+     */
+    void addRow(float[] values, int offset, int x0, int x1, int y, int z) {
+        int dy = y - y_pos;
+        int dz = z - z_pos;
+
+        falloff.addRow(values, offset, x1 - x0 + 1, x0 - x_pos, dy * dy + dz * dz, intensity, radius);
     }
 
     /**
@@ -49,13 +171,10 @@ public class MetaBall {
      * @return the value
      */
     public float value(int x, int y, int z) {
-        int numerator = intensity;
-        float denominator = (float) (Math.pow(x - x_pos, 2) + Math.pow(y - y_pos, 2) + Math.pow(z - z_pos, 2));
+        int dx = x - x_pos;
+        int dy = y - y_pos;
+        int dz = z - z_pos;
 
-        if (Float.compare(denominator, 0f) == 0) {
-            return intensity;
-        } else {
-            return numerator / denominator;
-        }
+        return falloff.value(intensity, dx * dx + dy * dy + dz * dz, radius);
     }
 }
@@ -0,0 +1,164 @@
+package de.uni_passau.fim.seibt.v8.model.mc_alg.metaball_volume;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A uniform grid over a volume that stores, for every cell, the bounded <code>MetaBall</code>s whose support
+ * intersects the cell. The value at a position is then the sum over the balls of one cell and the unbounded balls,
+ * so its cost depends on the number of balls close to the position instead of the total number of balls.
+ */
+class MetaBallGrid {
+
+    private static final MetaBall[] NO_BALLS = new MetaBall[0];
+
+    /**
+     * The maximum number of cells, the cell size is increased until the grid does not exceed it.
+     */
+    private static final long MAX_CELLS = 1 << 21;
+
+    private final int cellSize;
+    private final int xCells;
+    private final int yCells;
+    private final int zCells;
+    private final MetaBall[][] cells;
+    private final MetaBall[] unbounded;
+
+    /**
+     * Constructs a new <code>MetaBallGrid</code> containing the given balls over a volume of the given dimensions.
+     * The cell size is the largest radius of a bounded ball, increased if the grid would have too many cells.
+     *
+     * @param balls
+     *         the balls
+     * @param xSize
+     *         the size of the volume in x
+     * @param ySize
+     *         the size of the volume in y
+     * @param zSize
+     *         the size of the volume in z
+     */
+    MetaBallGrid(List<MetaBall> balls, int xSize, int ySize, int zSize) {
+        List<MetaBall> unbounded = new ArrayList<>();
+        float maxRadius = 1;
+
+        for (MetaBall ball : balls) {
+            if (ball.isBounded()) {
+                maxRadius = Math.max(maxRadius, ball.getRadius());
+            } else {
+                unbounded.add(ball);
+            }
+        }
+
+        int cellSize = (unbounded.size() == balls.size()) ? Math.max(1, Math.max(xSize, Math.max(ySize, zSize)))
+                                                          : (int) Math.ceil(maxRadius);
+
+        while (numCells(xSize, cellSize) * numCells(ySize, cellSize) * numCells(zSize, cellSize) > MAX_CELLS) {
+            cellSize *= 2;
+        }
+
+        this.cellSize = cellSize;
+        this.xCells = (int) numCells(xSize, cellSize);
+        this.yCells = (int) numCells(ySize, cellSize);
+        this.zCells = (int) numCells(zSize, cellSize);
+        this.unbounded = unbounded.toArray(NO_BALLS);
+
+        List<List<MetaBall>> cellLists = new ArrayList<>(xCells * yCells * zCells);
+
+        for (int i = 0; i < xCells * yCells * zCells; i++) {
+            cellLists.add(null);
+        }
+
+        for (MetaBall ball : balls) {
+
+            if (!ball.isBounded()) {
+                continue;
+            }
+
+            float r = ball.getRadius();
+
+            // the cells intersecting the bounding box of the support of the ball
+            int x0 = cell(ball.getX() - r, xCells);
+            int x1 = cell(ball.getX() + r, xCells);
+            int y0 = cell(ball.getY() - r, yCells);
+            int y1 = cell(ball.getY() + r, yCells);
+            int z0 = cell(ball.getZ() - r, zCells);
+            int z1 = cell(ball.getZ() + r, zCells);
+
+            for (int z = z0; z <= z1; z++) {
+                for (int y = y0; y <= y1; y++) {
+                    for (int x = x0; x <= x1; x++) {
+                        int index = (z * yCells + y) * xCells + x;
+
+                        if (cellLists.get(index) == null) {
+                            cellLists.set(index, new ArrayList<>());
+                        }
+
+                        cellLists.get(index).add(ball);
+                    }
+                }
+            }
+        }
+
+        this.cells = new MetaBall[cellLists.size()][];
+
+        for (int i = 0; i < cells.length; i++) {
+            List<MetaBall> cell = cellLists.get(i);
+            cells[i] = (cell == null) ? NO_BALLS : cell.toArray(NO_BALLS);
+        }
+    }
+
+    /**
+     * Returns the number of cells of the given size needed to cover the given size.
+     *
+     * @param size
+     *         the size of the volume in one direction
+     * @param cellSize
+     *         the size of the cells
+     *
+     * @return the number of cells, at least 1
+     */
+    private static long numCells(int size, int cellSize) {
+        return Math.max(1, (size + (long) cellSize - 1) / cellSize);
+    }
+
+    /**
+     * Returns the index of the cell containing the given coordinate, clamped to the grid.
+     *
+     * @param coordinate
+     *         the coordinate
+     * @param numCells
+     *         the number of cells in the direction of the coordinate
+     *
+     * @return the cell index
+     */
+    private int cell(float coordinate, int numCells) {
+        return Math.max(0, Math.min(numCells - 1, (int) Math.floor(coordinate / cellSize)));
+    }
+
+    /**
+     * Computes the sum of the values of all balls at the given position, which must be inside the volume.
+     *
+     * @param x
+     *         the x coordinate
+     * @param y
+     *         the y coordinate
+     * @param z
+     *         the z coordinate
+     *
+     * @return the value
+     */
+    float value(int x, int y, int z) {
+        MetaBall[] cell = cells[((z / cellSize) * yCells + (y / cellSize)) * xCells + (x / cellSize)];
+        double value = 0;
+
+        for (MetaBall ball : cell) {
+            value += ball.value(x, y, z);
+        }
+
+        for (MetaBall ball : unbounded) {
+            value += ball.value(x, y, z);
+        }
+
+        return (float) value;
+    }
+}
@@ -0,0 +1,193 @@
+package de.uni_passau.fim.seibt.v8.model.mc_alg.metaball_volume;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import javafx.beans.property.DoubleProperty;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.FlatVolume;
+
+/**
+ * Computes the values of a set of <code>MetaBall</code>s for every position of a volume. The volume is split into tiles
+ * of <code>TILE_SIZE</code> rows by <code>TILE_SIZE</code> slices that are computed in parallel into a thread local
+ * buffer and then copied into a <code>FlatVolume</code> or, for a part of the slices, an array. Every tile only visits
+ * the balls whose support intersects it, and every ball only the part of each row within its radius, so the inner loop
+ * over a row contains no branches.
+ */
+class MetaBallRasterizer {
+
+    /**
+     * The number of rows and slices of a tile.
+     */
+    private static final int TILE_SIZE = 8;
+
+    private final int xSize;
+    private final int ySize;
+    private final int zSize;
+    private final int yTiles;
+    private final int zTiles;
+    private final List<List<MetaBall>> tiles;
+
+    private final ThreadLocal<float[]> buffers;
+
+    /**
+     * Constructs a new <code>MetaBallRasterizer</code> for the given balls and dimensions.
+     *
+     * @param balls
+     *         the balls
+     * @param xSize
+     *         the size of the volume in x
+     * @param ySize
+     *         the size of the volume in y
+     * @param zSize
+     *         the size of the volume in z
+     */
+    MetaBallRasterizer(List<MetaBall> balls, int xSize, int ySize, int zSize) {
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.zSize = zSize;
+        this.yTiles = (ySize + TILE_SIZE - 1) / TILE_SIZE;
+        this.zTiles = (zSize + TILE_SIZE - 1) / TILE_SIZE;
+        this.tiles = new ArrayList<>(yTiles * zTiles);
+        this.buffers = ThreadLocal.withInitial(() -> new float[TILE_SIZE * TILE_SIZE * xSize]);
+
+        for (int i = 0; i < yTiles * zTiles; i++) {
+            tiles.add(new ArrayList<>());
+        }
+
+        // the balls are added in their order so every position sums them up in the same order
+        for (MetaBall ball : balls) {
+            int y0 = 0;
+            int y1 = yTiles - 1;
+            int z0 = 0;
+            int z1 = zTiles - 1;
+
+            if (ball.isBounded()) {
+                int r = (int) Math.ceil(ball.getRadius());
+
+                y0 = Math.max(y0, Math.floorDiv(ball.getY() - r, TILE_SIZE));
+                y1 = Math.min(y1, Math.floorDiv(ball.getY() + r, TILE_SIZE));
+                z0 = Math.max(z0, Math.floorDiv(ball.getZ() - r, TILE_SIZE));
+                z1 = Math.min(z1, Math.floorDiv(ball.getZ() + r, TILE_SIZE));
+            }
+
+            for (int z = z0; z <= z1; z++) {
+                for (int y = y0; y <= y1; y++) {
+                    tiles.get(z * yTiles + y).add(ball);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the volume. The given property is set to the fraction of tiles done.
+     *
+     * @param progress
+     *         the property to report the progress to
+     *
+     * @return the volume
+     */
+    FlatVolume rasterize(DoubleProperty progress) {
+        FlatVolume volume = new FlatVolume(xSize, ySize, zSize);
+        AtomicInteger doneTiles = new AtomicInteger(0);
+
+        IntStream.range(0, tiles.size()).parallel().forEach(tile -> {
+            int y0 = (tile % yTiles) * TILE_SIZE;
+            int z0 = (tile / yTiles) * TILE_SIZE;
+            int rows = Math.min(TILE_SIZE, ySize - y0);
+            int z1 = Math.min(z0 + TILE_SIZE, zSize);
+            float[] buffer = computeTile(tile, z0, z1);
+
+            for (int z = z0; z < z1; z++) {
+                FloatBuffer slice = volume.slice(z);
+
+                slice.position(y0 * xSize);
+                slice.put(buffer, (z - z0) * rows * xSize, rows * xSize);
+            }
+
+            double done = (double) doneTiles.incrementAndGet() / tiles.size();
+
+            synchronized (progress) {
+                progress.setValue(Math.max(progress.get(), done));
+            }
+        });
+
+        return volume;
+    }
+
+    /**
+     * Computes the slices <code>z0</code> (inclusive) to <code>z1</code> (exclusive) of the volume into the given
+     * array, x varies fastest, followed by y and z.
+     *
+     * @param z0
+     *         the index of the first slice
+     * @param z1
+     *         the index after the last slice
+     * @param values
+     *         the array to store the values in
+     */
+    void rasterize(int z0, int z1, float[] values) {
+        int firstTile = (z0 / TILE_SIZE) * yTiles;
+        int lastTile = ((z1 - 1) / TILE_SIZE + 1) * yTiles;
+
+        IntStream.range(firstTile, lastTile).parallel().forEach(tile -> {
+            int y0 = (tile % yTiles) * TILE_SIZE;
+            int tileZ0 = Math.max(z0, (tile / yTiles) * TILE_SIZE);
+            int tileZ1 = Math.min(z1, (tile / yTiles + 1) * TILE_SIZE);
+            int rows = Math.min(TILE_SIZE, ySize - y0);
+            float[] buffer = computeTile(tile, tileZ0, tileZ1);
+
+            for (int z = tileZ0; z < tileZ1; z++) {
+                System.arraycopy(buffer, (z - tileZ0) * rows * xSize, values, ((z - z0) * ySize + y0) * xSize,
+                        rows * xSize);
+            }
+        });
+    }
+
+    /**
+     * Computes the values of the slices <code>z0</code> to <code>z1</code> of the given tile into the buffer of the
+     * current thread. The values of slice z and row y are stored from index
+     * <code>((z - z0) * rows + (y - tileY)) * xSize</code> on, where rows is the number of rows of the tile and tileY
+     * its first row.
+     *
+     * @param tile
+     *         the index of the tile
+     * @param z0
+     *         the first slice to compute, must be in the tile
+     * @param z1
+     *         the slice after the last slice to compute, must be at most the end of the tile
+     *
+     * @return the buffer containing the values
+     */
+    private float[] computeTile(int tile, int z0, int z1) {
+        int y0 = (tile % yTiles) * TILE_SIZE;
+        int rows = Math.min(TILE_SIZE, ySize - y0);
+        float[] buffer = buffers.get();
+
+        Arrays.fill(buffer, 0, (z1 - z0) * rows * xSize, 0);
+
+        for (MetaBall ball : tiles.get(tile)) {
+            for (int z = z0; z < z1; z++) {
+                for (int y = y0; y < y0 + rows; y++) {
+                    int halfWidth = ball.halfWidth(y, z);
+
+                    if (halfWidth < 0) {
+                        continue;
+                    }
+
+                    int x0 = (int) Math.max(0, (long) ball.getX() - halfWidth);
+                    int x1 = (int) Math.min(xSize - 1, (long) ball.getX() + halfWidth);
+
+                    if (x0 <= x1) {
+                        ball.addRow(buffer, ((z - z0) * rows + (y - y0)) * xSize + x0, x0, x1, y, z);
+                    }
+                }
+            }
+        }
+
+        return buffer;
+    }
+}
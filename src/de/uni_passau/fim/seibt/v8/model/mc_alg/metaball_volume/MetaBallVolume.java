@@ -1,22 +1,23 @@
 package de.uni_passau.fim.seibt.v8.model.mc_alg.metaball_volume;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 import javafx.beans.property.DoubleProperty;
 import javafx.beans.property.SimpleDoubleProperty;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.FlatVolume;
 import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.MCVolume;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.mc_volume.SlabSource;
 
 /**
  * A volume containing <code>MetaBall</code> instances.
+ * Values are looked up in a <code>MetaBallGrid</code> over the balls that is rebuilt whenever the balls or the
+ * dimensions change, so balls with bounded support (see <code>Falloff</code>) are only visited close to their centers.
  *
  * @see <a href="http://en.wikipedia.org/wiki/Metaballs">Metaballs</a>
  */
-public class MetaBallVolume implements MCVolume {
+public class MetaBallVolume implements MCVolume, SlabSource {
 
     // dimension of the volume
     private int xSize;
@@ -25,6 +26,12 @@ public class MetaBallVolume implements MCVolume {
 
     // the MetaBall instances in the volume
     private List<MetaBall> metaBalls;
+    private volatile MetaBallGrid grid; // null if the balls or dimensions changed since it was built
+    private volatile MetaBallRasterizer rasterizer; // null under the same conditions
+
+    // the falloff used for new balls
+    private Falloff falloff;
+    private float radius;
 
     private final DoubleProperty progress;
 
@@ -42,37 +49,76 @@ public class MetaBallVolume implements MCVolume {
         this.xSize = xSize;
         this.ySize = ySize;
         this.zSize = zSize;
-        this.metaBalls = new LinkedList<>();
+        this.metaBalls = new ArrayList<>();
+        this.falloff = Falloff.INVERSE_SQUARE;
+        this.radius = Float.POSITIVE_INFINITY;
         this.progress = new SimpleDoubleProperty(0);
     }
 
     /**
-     * Constructs a float array containing the values resulting from all the <code>MetaBall</code>s in this
-     * volume.
+     * Sets the <code>Falloff</code> and radius used for balls added by the <code>addBall</code> and
+     * <code>addRandomBall</code> methods taking coordinates. The default is <code>INVERSE_SQUARE</code> with an
+     * infinite radius.
+     *
+     * @param falloff
+     *         the <code>Falloff</code> for new balls
+     * @param radius
+     *         the radius for new balls, may be infinite only for <code>INVERSE_SQUARE</code>
+     */
+    public void setFalloff(Falloff falloff, float radius) {
+        this.falloff = falloff;
+        this.radius = radius;
+    }
+
+    /**
+     * Returns the <code>MetaBallGrid</code> over the current balls, building it if necessary.
+     *
+     * @return the grid
+     */
+    private MetaBallGrid grid() {
+        MetaBallGrid grid = this.grid;
+
+        if (grid == null) {
+            grid = new MetaBallGrid(metaBalls, xSize, ySize, zSize);
+            this.grid = grid;
+        }
+
+        return grid;
+    }
+
+    /**
+     * Returns the <code>MetaBallRasterizer</code> for the current balls, building it if necessary.
+     *
+     * @return the rasterizer
+     */
+    private MetaBallRasterizer rasterizer() {
+        MetaBallRasterizer rasterizer = this.rasterizer;
+
+        if (rasterizer == null) {
+            rasterizer = new MetaBallRasterizer(metaBalls, xSize, ySize, zSize);
+            this.rasterizer = rasterizer;
+        }
+
+        return rasterizer;
+    }
+
+    /**
+     * Discards the <code>MetaBallGrid</code> and <code>MetaBallRasterizer</code> after the balls or dimensions
+     * changed.
+     */
+    private void invalidate() {
+        grid = null;
+        rasterizer = null;
+    }
+
+    /**
+     * Constructs a <code>FlatVolume</code> containing the values resulting from all the <code>MetaBall</code>s in
+     * this volume. The progress property is set to the fraction of the volume done.
      *
      * @return the volume
      */
-    public float[][][] getVolume() {
-        float[][][] volume = new float[zSize][ySize][xSize];
-        float numValues = zSize * ySize * xSize * metaBalls.size();
-        AtomicInteger doneValues = new AtomicInteger(0);
-
-        IntStream.range(0, volume.length).parallel().forEach(z -> {
-            for (MetaBall metaBall : metaBalls) {
-                for (int y = 0; y < volume[z].length; y++) {
-                    for (int x = 0; x < volume[z][y].length; x++) {
-                        volume[z][y][x] += metaBall.value(x, y, z);
-                        doneValues.incrementAndGet();
-                    }
-                }
-            }
-
-            synchronized (progress) {
-                progress.setValue(doneValues.get() / numValues);
-            }
-        });
-
-        return volume;
+    public FlatVolume getVolume() {
+        return rasterizer().rasterize(progress);
     }
 
     /**
@@ -91,6 +137,7 @@ public class MetaBallVolume implements MCVolume {
      */
     public void addBall(MetaBall metaBall) {
         metaBalls.add(metaBall);
+        invalidate();
     }
 
     /**
@@ -101,6 +148,7 @@ public class MetaBallVolume implements MCVolume {
      */
     public void addAllBalls(Collection<? extends MetaBall> balls) {
         metaBalls.addAll(balls);
+        invalidate();
     }
 
     /**
@@ -111,6 +159,7 @@ public class MetaBallVolume implements MCVolume {
      */
     public void setBalls(int num) {
         metaBalls.clear();
+        invalidate();
 
         for (int i = 0; i < num; i++) {
             addRandomBall();
@@ -148,6 +197,7 @@ public class MetaBallVolume implements MCVolume {
      */
     public void setXSize(int xSize) {
         this.xSize = xSize;
+        invalidate();
     }
 
     /**
@@ -157,6 +207,7 @@ public class MetaBallVolume implements MCVolume {
      */
     public void setYSize(int ySize) {
         this.ySize = ySize;
+        invalidate();
     }
 
     /**
@@ -166,6 +217,7 @@ public class MetaBallVolume implements MCVolume {
      */
     public void setZSize(int zSize) {
         this.zSize = zSize;
+        invalidate();
     }
 
     /**
@@ -181,7 +233,7 @@ public class MetaBallVolume implements MCVolume {
      *         the intensity of the ball
      */
     public void addBall(int x, int y, int z, int intensity) {
-        metaBalls.add(new MetaBall(x, y, z, intensity));
+        addBall(new MetaBall(x, y, z, intensity, falloff, radius));
     }
 
     /**
@@ -196,7 +248,7 @@ public class MetaBallVolume implements MCVolume {
      *         the z coordinate for the ball
      */
     public void addBall(int x, int y, int z) {
-        metaBalls.add(new MetaBall(x, y, z));
+        addBall(x, y, z, 1);
     }
 
     /**
@@ -223,6 +275,11 @@ public class MetaBallVolume implements MCVolume {
         return progress;
     }
 
+    @Override
+    public void computeSlab(int z0, int z1, float[] values) {
+        rasterizer().rasterize(z0, z1, values);
+    }
+
     @Override
     public float value(int x, int y, int z) {
 
@@ -238,7 +295,7 @@ public class MetaBallVolume implements MCVolume {
             return 0f;
         }
 
-        return metaBalls.stream().collect(Collectors.summingDouble(ball -> ball.value(x, y, z))).floatValue();
+        return grid().value(x, y, z);
     }
 
     @Override
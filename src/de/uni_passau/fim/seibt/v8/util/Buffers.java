@@ -4,10 +4,11 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 
 /**
- * Contains static convenience methods for allocating <code>FloatBuffer</code>, <code>IntBuffer</code> and
- * <code>ByteBuffer</code> instances.
+ * Contains static convenience methods for allocating <code>FloatBuffer</code>, <code>IntBuffer</code>,
+ * <code>ShortBuffer</code> and <code>ByteBuffer</code> instances.
  */
 public class Buffers {
 
@@ -35,6 +36,18 @@ public class Buffers {
         return allocateByteBuffer(size * 4).asFloatBuffer();
     }
 
+    /**
+     * Allocates a new <code>ShortBuffer</code> of the given size.
+     *
+     * @param size
+     *         the size in shorts
+     *
+     * @return the allocated <code>ShortBuffer</code>
+     */
+    public static ShortBuffer allocateShortBuffer(int size) {
+        return allocateByteBuffer(size * 2).asShortBuffer();
+    }
+
     /**
      * Allocates a new <code>ByteBuffer</code> of the given size.
      *
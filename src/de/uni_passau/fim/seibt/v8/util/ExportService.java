@@ -0,0 +1,453 @@
+package de.uni_passau.fim.seibt.v8.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.SimpleDoubleProperty;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.Mesh;
+
+/**
+ * Exports <code>Mesh</code>es in the background using the {@link Exporter} on a fixed number of threads. The
+ * <code>Mesh</code>es waiting for or being exported stay in memory, so the number of bytes of their buffers is
+ * limited: {@link #submit(Mesh, File, Set)} blocks until enough of the running exports finished. A
+ * <code>Mesh</code> exported in several formats occupies its bytes only once, the formats are written in parallel.
+ */
+public class ExportService {
+
+    /**
+     * The file formats supported by the <code>ExportService</code>.
+     */
+    public enum Format {
+
+        OBJ("obj"), STL("stl"), PLY("ply"), PLY_QUANTIZED("ply"), GLB("glb"), GLB_QUANTIZED("glb"), V8M("v8m");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        /**
+         * Returns the file extension (without the dot) of this format.
+         *
+         * @return the extension
+         */
+        public String extension() {
+            return extension;
+        }
+
+        /**
+         * Returns the unquantized format with the extension of the given file.
+         *
+         * @param file
+         *         the file
+         *
+         * @return the <code>Format</code> or <code>null</code> if the extension of <code>file</code> is not supported
+         */
+        public static Format of(File file) {
+            String name = file.getName();
+            String extension = name.substring(name.lastIndexOf('.') + 1);
+
+            for (Format format : values()) {
+
+                if (format.extension.equalsIgnoreCase(extension)) {
+                    return format;
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Exports the given <code>Mesh</code> in this format.
+         *
+         * @param mesh
+         *         the <code>Mesh</code> to export
+         * @param file
+         *         the <code>File</code> to save the <code>Mesh</code> to
+         *
+         * @return whether the file was written completely
+         */
+        private boolean export(Mesh mesh, File file) {
+
+            switch (this) {
+                case OBJ:
+                    return Exporter.exportOBJ(mesh, file);
+                case STL:
+                    return Exporter.exportSTL(mesh, file);
+                case PLY:
+                case PLY_QUANTIZED:
+                    return Exporter.exportPLY(mesh, file, this == PLY_QUANTIZED);
+                case GLB:
+                case GLB_QUANTIZED:
+                    return Exporter.exportGLB(mesh, file, this == GLB_QUANTIZED);
+                case V8M:
+                    return Exporter.exportV8M(mesh, file);
+                default:
+                    throw new AssertionError(this);
+            }
+        }
+    }
+
+    /**
+     * The export of a <code>Mesh</code> in one or more formats submitted to an <code>ExportService</code>.
+     */
+    public class Export {
+
+        private Mesh mesh; // null once all formats are finished, so a retained Export does not pin the buffers
+        private final long bytes;
+        private final List<Format> formats;
+        private final List<File> files;
+        private final List<Future<?>> tasks;
+        private final AtomicBoolean[] started; // whether the format was claimed by its task or by cancel()
+        private final AtomicInteger numFinished;
+        private final CountDownLatch done;
+        private final DoubleProperty progress; // the share of the formats that are finished
+
+        private volatile boolean cancelled;
+        private volatile boolean failed;
+        private Consumer<Export> onFinish;
+
+        private Export(Mesh mesh, long bytes, List<Format> formats, List<File> files) {
+            this.mesh = mesh;
+            this.bytes = bytes;
+            this.formats = formats;
+            this.files = files;
+            this.tasks = new ArrayList<>();
+            this.started = new AtomicBoolean[formats.size()];
+            this.numFinished = new AtomicInteger();
+            this.done = new CountDownLatch(1);
+            this.progress = new SimpleDoubleProperty(0);
+
+            for (int i = 0; i < started.length; i++) {
+                started[i] = new AtomicBoolean();
+            }
+        }
+
+        /**
+         * Returns the progress property of this <code>Export</code>. Will have a value between 0 - 1 indicating
+         * the share of the formats that are written.
+         *
+         * @return the progress property
+         */
+        public DoubleProperty progressProperty() {
+            return progress;
+        }
+
+        /**
+         * Returns the files the <code>Mesh</code> is written to, one for every format.
+         *
+         * @return an unmodifiable list of the files
+         */
+        public List<File> getFiles() {
+            return Collections.unmodifiableList(files);
+        }
+
+        /**
+         * Sets the method that will be called when all formats are finished, that is written, failed or skipped
+         * because the export was cancelled. If the export is already finished <code>onFinish</code> is called
+         * immediately.
+         *
+         * @param onFinish
+         *         the <code>Consumer</code> that should accept this <code>Export</code>
+         */
+        public void setOnFinished(Consumer<Export> onFinish) {
+            boolean finishedAlready;
+
+            synchronized (this) {
+                this.onFinish = onFinish;
+                finishedAlready = isDone();
+            }
+
+            if (finishedAlready && onFinish != null) {
+                onFinish.accept(this);
+            }
+        }
+
+        /**
+         * Cancels the export. Formats that are not written yet are skipped, running writes are interrupted and the
+         * files of all formats that were not written completely are deleted.
+         */
+        public void cancel() {
+            cancelled = true;
+
+            for (int i = 0; i < tasks.size(); i++) {
+
+                if (started[i].compareAndSet(false, true)) {
+                    finish(i, false); // the task will not write the format
+                } else {
+                    tasks.get(i).cancel(true);
+                }
+            }
+        }
+
+        /**
+         * Returns whether this <code>Export</code> was cancelled.
+         *
+         * @return true iff {@link #cancel()} was called
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Returns whether writing any of the formats failed for another reason than cancelling the export. The files
+         * of the failed formats are deleted.
+         *
+         * @return true iff a format could not be written
+         */
+        public boolean isFailed() {
+            return failed;
+        }
+
+        /**
+         * Returns whether all formats are written or the export was cancelled and no write is running anymore.
+         *
+         * @return true iff the export is finished
+         */
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * Blocks until the export is finished.
+         *
+         * @throws InterruptedException
+         *         if the current thread is interrupted while waiting
+         */
+        public void await() throws InterruptedException {
+            done.await();
+        }
+
+        /**
+         * Writes the format with the given index.
+         *
+         * @param i
+         *         the index of the format
+         */
+        private void write(int i) {
+
+            if (!started[i].compareAndSet(false, true)) {
+                return; // the export was cancelled before the task ran
+            }
+
+            boolean written = false;
+
+            try {
+                written = formats.get(i).export(mesh, files.get(i)) && !cancelled;
+            } finally {
+
+                if (!written && !cancelled) {
+                    failed = true;
+                }
+
+                finish(i, written);
+            }
+        }
+
+        /**
+         * Marks the format with the given index as finished, which happens exactly once per format, deleting its file
+         * if it was not written completely. When all formats are finished the bytes of the <code>Mesh</code> are
+         * released, the reference to it is dropped and the <code>onFinish</code> method is called.
+         *
+         * @param i
+         *         the index of the format
+         * @param written
+         *         whether the file was written completely
+         */
+        private void finish(int i, boolean written) {
+
+            if (!written && files.get(i).exists() && !files.get(i).delete()) {
+                System.err.println("Could not delete the incomplete file " + files.get(i).getName() + ".");
+            }
+
+            int numDone = numFinished.incrementAndGet();
+
+            progress.set(numDone / (double) formats.size());
+
+            if (numDone < formats.size()) {
+                return;
+            }
+
+            release(bytes);
+
+            Consumer<Export> onFinish;
+
+            synchronized (this) {
+                mesh = null;
+                done.countDown();
+                onFinish = this.onFinish;
+            }
+
+            if (onFinish != null) {
+                onFinish.accept(this);
+            }
+        }
+    }
+
+    private final ExecutorService executor;
+    private final long maxBytes;
+
+    private long bytesInFlight; // the bytes of the Meshes of all unfinished exports, guarded by this
+
+    /**
+     * Constructs a new <code>ExportService</code>.
+     *
+     * @param numThreads
+     *         the number of files that may be written at the same time
+     * @param maxBytes
+     *         the maximum number of bytes the <code>Mesh</code>es of the unfinished exports may occupy, a single
+     *         <code>Mesh</code> exceeding it is still exported when no other export is running
+     *
+     * @throws IllegalArgumentException
+     *         if <code>numThreads</code> or <code>maxBytes</code> is smaller than 1
+     */
+    public ExportService(int numThreads, long maxBytes) {
+
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be greater than 0!");
+        }
+
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be greater than 0!");
+        }
+
+        this.maxBytes = maxBytes;
+        this.executor = Executors.newFixedThreadPool(numThreads, r -> {
+            Thread thread = new Thread(r, ExportService.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Submits the export of the given <code>Mesh</code> in the given formats. The <code>Mesh</code> is written to
+     * <code>file</code> with its extension replaced by the one of the format. This method blocks as long as the
+     * unfinished exports together with this one would occupy more than the maximum number of bytes, the buffers of
+     * <code>mesh</code> must not be modified until the export is finished.
+     *
+     * @param mesh
+     *         the <code>Mesh</code> to export
+     * @param file
+     *         the <code>File</code> to save the <code>Mesh</code> to
+     * @param formats
+     *         the formats to export the <code>Mesh</code> in, no two of them may share an extension
+     *
+     * @return the <code>Export</code>
+     *
+     * @throws NullPointerException
+     *         if any of the parameters is <code>null</code>
+     * @throws IllegalArgumentException
+     *         if <code>formats</code> is empty or contains two formats with the same extension
+     * @throws InterruptedException
+     *         if the current thread is interrupted while waiting for running exports to finish
+     */
+    public Export submit(Mesh mesh, File file, Set<Format> formats) throws InterruptedException {
+        Objects.requireNonNull(mesh, "mesh must not be null!");
+        Objects.requireNonNull(file, "file must not be null!");
+        Objects.requireNonNull(formats, "formats must not be null!");
+
+        if (formats.isEmpty()) {
+            throw new IllegalArgumentException("formats must not be empty!");
+        }
+
+        List<Format> formatList = new ArrayList<>(formats);
+        List<File> files = new ArrayList<>();
+
+        for (Format format : formatList) {
+            File formatFile = fileFor(file, format);
+
+            if (files.contains(formatFile)) {
+                throw new IllegalArgumentException("formats must not share an extension!");
+            }
+
+            files.add(formatFile);
+        }
+
+        long bytes = 4L * (mesh.getVertices().capacity() + mesh.getNormals().capacity()
+                + mesh.getIndices().capacity());
+
+        acquire(bytes);
+
+        Export export = new Export(mesh, bytes, formatList, files);
+
+        for (int i = 0; i < formatList.size(); i++) {
+            int index = i;
+
+            export.tasks.add(executor.submit(() -> export.write(index)));
+        }
+
+        return export;
+    }
+
+    /**
+     * Returns the number of bytes occupied by the <code>Mesh</code>es of the unfinished exports.
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getBytesInFlight() {
+        return bytesInFlight;
+    }
+
+    /**
+     * Returns the given file with its extension replaced by the extension of the given format. An extension is only
+     * replaced if it is the extension of a supported format.
+     *
+     * @param file
+     *         the file
+     * @param format
+     *         the format
+     *
+     * @return the file for the format
+     */
+    static File fileFor(File file, Format format) {
+        String name = file.getName();
+
+        if (Format.of(file) != null) {
+            name = name.substring(0, name.lastIndexOf('.'));
+        }
+
+        return new File(file.getParentFile(), name + "." + format.extension());
+    }
+
+    /**
+     * Blocks until the given number of bytes may be occupied and adds them to the bytes in flight.
+     *
+     * @param bytes
+     *         the number of bytes
+     *
+     * @throws InterruptedException
+     *         if the current thread is interrupted while waiting
+     */
+    private synchronized void acquire(long bytes) throws InterruptedException {
+
+        while (bytesInFlight > 0 && bytesInFlight + bytes > maxBytes) {
+            wait();
+        }
+
+        bytesInFlight += bytes;
+    }
+
+    /**
+     * Removes the given number of bytes from the bytes in flight and wakes up waiting submitters.
+     *
+     * @param bytes
+     *         the number of bytes
+     */
+    private synchronized void release(long bytes) {
+        bytesInFlight -= bytes;
+        notifyAll();
+    }
+}
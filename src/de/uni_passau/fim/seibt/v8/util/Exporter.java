@@ -1,22 +1,18 @@
 package de.uni_passau.fim.seibt.v8.util;
 
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.util.Calendar;
 
-import de.uni_passau.fim.seibt.v8.V8;
 import de.uni_passau.fim.seibt.v8.model.mc_alg.Mesh;
+import de.uni_passau.fim.seibt.v8.util.jfr.ExportEvent;
+import de.uni_passau.fim.seibt.v8.util.metrics.Metrics;
 
 /**
- * An exporter for the .obj and .stl file format.
+ * An exporter for the .obj, .stl, .ply, .glb and .v8m file format.
  */
 public class Exporter {
 
     /**
-     * Saves the given <code>Mesh</code> as an .obj file.
+     * Saves the given <code>Mesh</code> as an .obj file using an <code>ObjWriter</code>.
      * If <code>saveFile</code> exists and is not a directory it will be overwritten.
      * Neither <code>mesh</code> nor <code>saveFile</code> may be <code>null</code>.
      *
@@ -24,128 +20,240 @@ public class Exporter {
      *         the <code>Mesh</code> to be exported
      * @param saveFile
      *         the <code>File</code> to save the .obj data to
+     *
+     * @return whether the file was written completely
      */
-    public static void exportOBJ(Mesh mesh, File saveFile) {
+    public static boolean exportOBJ(Mesh mesh, File saveFile) {
 
         if (mesh == null || saveFile == null) {
             System.err.println("Neither mesh nor saveFile may be null, aborting mesh export.");
-            return;
+            return false;
         }
 
         if (saveFile.isDirectory()) {
             System.err.println("saveFile must not be a directory, aborting mesh export.");
-            return;
+            return false;
         }
 
-        String vertex = "v";
-        String vertexNormal = "vn";
-        String vectorFormatString = "%s %s %s %s %n";
-        String face = "f";
-        String faceFormatString = "%s %2$d//%2$d %3$d//%3$d %4$d//%4$d %n";
+        ExportEvent event = new ExportEvent();
+        long startTime = System.nanoTime();
+        boolean written = false;
+        event.begin();
 
-        try (Writer writer = new BufferedWriter(new FileWriter(saveFile))) {
-            writer.write(String.format("# Created by %s on %tc %n%n", V8.class.getSimpleName(), Calendar.getInstance()));
-            writer.write(String.format("o %s%n", getFileName(saveFile)));
+        try {
+            ObjWriter.write(mesh, saveFile, getFileName(saveFile));
+            written = true;
+        } catch (IOException e) {
+            System.err.println("Could not write the " + saveFile.getName() + " .obj file. " + e.getMessage());
+        }
 
-            FloatBuffer verts = mesh.getVertices();
-            while (verts.hasRemaining()) {
-                writer.write(String.format(vectorFormatString, vertex, verts.get(), verts.get(), verts.get()));
-                verts.position(verts.position() + 3); // skip the normal points
-            }
+        exportFinished(event, startTime, "OBJ", mesh, saveFile, written);
 
-            writer.write(String.format("%n"));
+        return written;
+    }
 
-            FloatBuffer norms = mesh.getNormals();
-            while (norms.hasRemaining()) {
-                writer.write(String.format(vectorFormatString, vertexNormal, norms.get(), norms.get(), norms.get()));
-            }
+    /**
+     * Saves the given <code>Mesh</code> as a binary .stl file using a <code>StlWriter</code>.
+     *
+     * @param mesh the <code>Mesh</code> to be exported
+     * @param saveFile the <code>File</code> to save the .stl data to
+     * @return whether the file was written completely
+     */
+    public static boolean exportSTL(Mesh mesh, File saveFile) {
 
-            writer.write(String.format("%n"));
+        if (mesh == null || saveFile == null) {
+            System.err.println("Neither mesh nor saveFile may be null, aborting mesh export.");
+            return false;
+        }
 
-            IntBuffer ind = mesh.getIndices();
-            while (ind.hasRemaining()) {
+        if (saveFile.isDirectory()) {
+            System.err.println("saveFile must not be a directory, aborting mesh export.");
+            return false;
+        }
+
+        ExportEvent event = new ExportEvent();
+        long startTime = System.nanoTime();
+        boolean written = false;
+        event.begin();
 
-                // vertices and normals are 1 indexed in .obj so we have to add 1 to every index...
-                writer.write(String.format(faceFormatString, face, ind.get() + 1, ind.get() + 1, ind.get() + 1));
-            }
+        try {
+            StlWriter.write(mesh, saveFile);
+            written = true;
         } catch (IOException e) {
-            System.err.println("Could not write the " + saveFile.getName() + " .obj file. " + e.getMessage());
+            System.err.println("Could not write the " + saveFile.getName() + " .stl file. " + e.getMessage());
         }
+
+        exportFinished(event, startTime, "STL", mesh, saveFile, written);
+
+        return written;
     }
 
     /**
-     * Saves the given <code>Mesh</code> as a binary .stl file.
+     * Saves the given <code>Mesh</code> as a binary .ply file using a <code>PlyWriter</code>. Positions and normals are
+     * stored as floats.
      *
      * @param mesh the <code>Mesh</code> to be exported
-     * @param saveFile the <code>File</code> to save the .stl data to
+     * @param saveFile the <code>File</code> to save the .ply data to
+     * @return whether the file was written completely
+     */
+    public static boolean exportPLY(Mesh mesh, File saveFile) {
+        return exportPLY(mesh, saveFile, false);
+    }
+
+    /**
+     * Saves the given <code>Mesh</code> as a binary .ply file using a <code>PlyWriter</code>. If
+     * <code>quantize</code> is <code>true</code> positions and normals are stored as 16 bit integers, roughly
+     * halving the size of the file.
+     *
+     * @param mesh the <code>Mesh</code> to be exported
+     * @param saveFile the <code>File</code> to save the .ply data to
+     * @param quantize whether to quantize positions and normals to 16 bit
+     * @return whether the file was written completely
      */
-    public static void exportSTL(Mesh mesh, File saveFile) {
+    public static boolean exportPLY(Mesh mesh, File saveFile, boolean quantize) {
 
         if (mesh == null || saveFile == null) {
             System.err.println("Neither mesh nor saveFile may be null, aborting mesh export.");
-            return;
+            return false;
         }
 
         if (saveFile.isDirectory()) {
             System.err.println("saveFile must not be a directory, aborting mesh export.");
-            return;
+            return false;
         }
 
-        int numFaces = mesh.getIndices().limit() / 3;
+        ExportEvent event = new ExportEvent();
+        long startTime = System.nanoTime();
+        boolean written = false;
+        event.begin();
+
+        try {
+            PlyWriter.write(mesh, saveFile, quantize);
+            written = true;
+        } catch (IOException e) {
+            System.err.println("Could not write the " + saveFile.getName() + " .ply file. " + e.getMessage());
+        }
+
+        exportFinished(event, startTime, "PLY", mesh, saveFile, written);
+
+        return written;
+    }
+
+    /**
+     * Saves the given <code>Mesh</code> as a binary glTF 2.0 (.glb) file using a <code>GlbWriter</code>. Positions and
+     * normals are stored as floats.
+     *
+     * @param mesh the <code>Mesh</code> to be exported
+     * @param saveFile the <code>File</code> to save the .glb data to
+     * @return whether the file was written completely
+     */
+    public static boolean exportGLB(Mesh mesh, File saveFile) {
+        return exportGLB(mesh, saveFile, false);
+    }
 
-        // an int for the number of faces and for every face 12 floats and one short for the attribute byte count
-        ByteBuffer outputBuffer = ByteBuffer.allocate(4 + numFaces * (12 * 4 + 2)).order(ByteOrder.LITTLE_ENDIAN);
-        IntBuffer indices = mesh.getIndices();
-        FloatBuffer vertices = mesh.getVertices();
-        Vector3f v1 = new Vector3f(0, 0, 0);
-        Vector3f v2 = new Vector3f(0, 0, 0);
-        Vector3f v3 = new Vector3f(0, 0, 0);
-        Vector3f[] vectors = {v1, v2, v3};
-        Vector3f normal;
-        int index;
+    /**
+     * Saves the given <code>Mesh</code> as a binary glTF 2.0 (.glb) file using a <code>GlbWriter</code>. If
+     * <code>quantize</code> is <code>true</code> positions and normals are quantized as defined by the
+     * KHR_mesh_quantization extension, which the file will then require.
+     *
+     * @param mesh the <code>Mesh</code> to be exported
+     * @param saveFile the <code>File</code> to save the .glb data to
+     * @param quantize whether to quantize positions and normals
+     * @return whether the file was written completely
+     */
+    public static boolean exportGLB(Mesh mesh, File saveFile, boolean quantize) {
 
-        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(saveFile)))) {
-            byte[] header = new byte[80];
-            byte[] headerString = String.format("Created by %s on %tc", V8.class.getSimpleName(), Calendar.getInstance()).getBytes();
-            System.arraycopy(headerString, 0, header, 0, headerString.length);
+        if (mesh == null || saveFile == null) {
+            System.err.println("Neither mesh nor saveFile may be null, aborting mesh export.");
+            return false;
+        }
 
-            output.write(header);
-            outputBuffer.putInt(numFaces);
+        if (saveFile.isDirectory()) {
+            System.err.println("saveFile must not be a directory, aborting mesh export.");
+            return false;
+        }
 
-            while (indices.hasRemaining()) {
+        ExportEvent event = new ExportEvent();
+        long startTime = System.nanoTime();
+        boolean written = false;
+        event.begin();
 
-                for (int i = 0; i < 3; i++) {
-                    index = indices.get() * 6; // *6 instead of *3 because we have to skip the normal points
-                    vectors[i].setXYZ(vertices.get(index), vertices.get(index + 1), vertices.get(index + 2));
-                }
+        try {
+            GlbWriter.write(mesh, saveFile, quantize);
+            written = true;
+        } catch (IOException e) {
+            System.err.println("Could not write the " + saveFile.getName() + " .glb file. " + e.getMessage());
+        }
 
-                normal = (v2.sub(v1)).cross(v3.sub(v1)).normalized();
+        exportFinished(event, startTime, "GLB", mesh, saveFile, written);
 
-                // the normal vector
-                outputBuffer.putFloat(normal.getX());
-                outputBuffer.putFloat(normal.getY());
-                outputBuffer.putFloat(normal.getZ());
+        return written;
+    }
 
-                // the vertices
-                outputBuffer.putFloat(vectors[0].getX());
-                outputBuffer.putFloat(vectors[0].getY());
-                outputBuffer.putFloat(vectors[0].getZ());
+    /**
+     * Saves the given <code>Mesh</code> as a compressed .v8m file using a <code>V8mWriter</code>. The file can be
+     * read back using {@link V8mReader#read(File)}.
+     *
+     * @param mesh the <code>Mesh</code> to be exported
+     * @param saveFile the <code>File</code> to save the .v8m data to
+     * @return whether the file was written completely
+     */
+    public static boolean exportV8M(Mesh mesh, File saveFile) {
 
-                outputBuffer.putFloat(vectors[1].getX());
-                outputBuffer.putFloat(vectors[1].getY());
-                outputBuffer.putFloat(vectors[1].getZ());
+        if (mesh == null || saveFile == null) {
+            System.err.println("Neither mesh nor saveFile may be null, aborting mesh export.");
+            return false;
+        }
 
-                outputBuffer.putFloat(vectors[2].getX());
-                outputBuffer.putFloat(vectors[2].getY());
-                outputBuffer.putFloat(vectors[2].getZ());
+        if (saveFile.isDirectory()) {
+            System.err.println("saveFile must not be a directory, aborting mesh export.");
+            return false;
+        }
 
-                // the attribute byte count
-                outputBuffer.putShort((short) 0);
-            }
+        ExportEvent event = new ExportEvent();
+        long startTime = System.nanoTime();
+        boolean written = false;
+        event.begin();
 
-            output.write(outputBuffer.array());
+        try {
+            V8mWriter.write(mesh, saveFile);
+            written = true;
         } catch (IOException e) {
-            System.err.println("Could not write the " + saveFile.getName() + " .stl file. " + e.getMessage());
+            System.err.println("Could not write the " + saveFile.getName() + " .v8m file. " + e.getMessage());
+        }
+
+        exportFinished(event, startTime, "V8M", mesh, saveFile, written);
+
+        return written;
+    }
+
+    /**
+     * Records a finished export in the <code>Metrics</code> and commits the given <code>ExportEvent</code> if it is
+     * enabled and its duration exceeds the configured threshold.
+     *
+     * @param event
+     *         the event covering the export
+     * @param startTime
+     *         the value of {@link System#nanoTime()} when the export started
+     * @param format
+     *         the name of the file format
+     * @param mesh
+     *         the exported <code>Mesh</code>
+     * @param saveFile
+     *         the <code>File</code> the <code>Mesh</code> was saved to
+     * @param written
+     *         whether the file was written successfully, the bytes of failed exports are not counted
+     */
+    private static void exportFinished(ExportEvent event, long startTime, String format, Mesh mesh, File saveFile,
+                                       boolean written) {
+
+        Metrics.get().exported(System.nanoTime() - startTime, written ? saveFile.length() : 0);
+
+        if (event.shouldCommit()) {
+            event.format = format;
+            event.file = saveFile.getPath();
+            event.triangles = mesh.getNumIndices() / 3;
+            event.commit();
         }
     }
 
@@ -0,0 +1,374 @@
+package de.uni_passau.fim.seibt.v8.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import de.uni_passau.fim.seibt.v8.V8;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.Mesh;
+
+/**
+ * Writes <code>Mesh</code>es as binary glTF 2.0 (.glb) files. The binary chunk contains the vertices buffer of the
+ * <code>Mesh</code> as it is, the positions are read from it with a byte stride of 24 skipping the end points of the
+ * normal lines, followed by the normals and the indices. Indices are stored as unsigned shorts if the number of
+ * vertices allows it.
+ * <p>
+ * Optionally the mesh is quantized as defined by the KHR_mesh_quantization extension: positions are stored as
+ * unsigned shorts spanning the bounding box of the mesh, which is restored by the transformation of the node, and
+ * normals as normalized bytes. The node uses the same scale for all axes, a non uniform scale would skew the
+ * normals.
+ * <p>
+ * The data is copied in bulk through a direct buffer of fixed size, the headers are written together with it using
+ * gathering writes on a <code>FileChannel</code>.
+ */
+class GlbWriter {
+
+    private static final int MAGIC = 0x46546C67; // 'glTF'
+    private static final int VERSION = 2;
+    private static final int CHUNK_JSON = 0x4E4F534A; // 'JSON'
+    private static final int CHUNK_BIN = 0x004E4942; // 'BIN\0'
+
+    private static final int FLOAT = 5126;
+    private static final int BYTE = 5120;
+    private static final int UNSIGNED_SHORT = 5123;
+    private static final int UNSIGNED_INT = 5125;
+    private static final int ARRAY_BUFFER = 34962;
+    private static final int ELEMENT_ARRAY_BUFFER = 34963;
+
+    /**
+     * The largest value of a quantized position.
+     */
+    private static final int MAX_QUANTIZED = 0xffff;
+
+    /**
+     * The size of the buffer the binary data is copied into before it is written.
+     */
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    /**
+     * Copies a range of elements of a section of the binary chunk into a buffer.
+     */
+    private interface Section {
+
+        void encode(ByteBuffer buffer, int from, int to);
+    }
+
+    /**
+     * Writes the given <code>Mesh</code> to the given file, overwriting it if it exists. The buffers of the
+     * <code>Mesh</code> are not modified.
+     *
+     * @param mesh the <code>Mesh</code> to write
+     * @param file the file to write to
+     * @param quantize whether to quantize positions and normals using KHR_mesh_quantization
+     * @throws IOException if the file could not be written
+     */
+    static void write(Mesh mesh, File file, boolean quantize) throws IOException {
+        FloatBuffer vertices = mesh.getVertices().duplicate();
+        FloatBuffer normals = mesh.getNormals().duplicate();
+        IntBuffer indices = mesh.getIndices().duplicate();
+        int numIndices = indices.limit();
+        int numVertices = (numIndices > 0) ? normals.limit() / 3 : 0;
+
+        // index values must be smaller than the largest value of their type, which is reserved for primitive restart
+        boolean shortIndices = numVertices <= 0xffff;
+
+        float[] min = new float[3];
+        float[] max = new float[3];
+        float[] scale = {1, 1, 1};
+
+        Arrays.fill(min, Float.POSITIVE_INFINITY);
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+
+        for (int i = 0; i < numVertices; i++) {
+            for (int c = 0; c < 3; c++) {
+                min[c] = Math.min(min[c], vertices.get(6 * i + c));
+                max[c] = Math.max(max[c], vertices.get(6 * i + c));
+            }
+        }
+
+        // viewers transform normals by the inverse transpose of the node matrix, so the scale has to be uniform
+        if (quantize) {
+            float extent = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+
+            Arrays.fill(scale, (extent > 0) ? extent / MAX_QUANTIZED : 1);
+        }
+
+        int positionStride = quantize ? 8 : 24; // vertex attributes have to be aligned to 4 bytes
+        int normalStride = quantize ? 4 : 12;
+        int indexSize = shortIndices ? 2 : 4;
+        long positionBytes = (long) numVertices * positionStride;
+        long normalBytes = (long) numVertices * normalStride;
+        long indexBytes = (long) numIndices * indexSize;
+        long binBytes = pad(positionBytes + normalBytes + indexBytes);
+
+        String json = json(numVertices, numIndices, quantize, shortIndices, min, max, scale, positionStride,
+                normalStride, positionBytes, normalBytes, indexBytes, binBytes);
+
+        byte[] jsonBytes = json.getBytes(StandardCharsets.UTF_8);
+        int jsonLength = (int) pad(jsonBytes.length);
+        long totalBytes = 12 + 8 + jsonLength + ((binBytes > 0) ? 8 + binBytes : 0);
+
+        if (totalBytes > 0xffffffffL) {
+            throw new IOException("The mesh is too large for a .glb file.");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(12 + 8).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt((int) totalBytes);
+        header.putInt(jsonLength).putInt(CHUNK_JSON);
+        header.flip();
+
+        ByteBuffer jsonChunk = ByteBuffer.allocate(jsonLength);
+        jsonChunk.put(jsonBytes);
+
+        while (jsonChunk.hasRemaining()) {
+            jsonChunk.put((byte) ' '); // the JSON chunk is padded with spaces
+        }
+
+        jsonChunk.flip();
+
+        ByteBuffer binHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        binHeader.putInt((int) binBytes).putInt(CHUNK_BIN);
+        binHeader.flip();
+
+        Section positionSection;
+        int positionCount;
+
+        if (quantize) {
+            positionCount = numVertices;
+            positionSection = (buffer, from, to) -> {
+                for (int i = from; i < to; i++) {
+                    for (int c = 0; c < 3; c++) {
+                        long value = Math.round((vertices.get(6 * i + c) - min[c]) / scale[c]);
+
+                        buffer.putShort((short) Math.max(0, Math.min(MAX_QUANTIZED, value)));
+                    }
+
+                    buffer.putShort((short) 0);
+                }
+            };
+        } else {
+            positionCount = numVertices * 6;
+            positionSection = (buffer, from, to) -> {
+                FloatBuffer range = vertices.duplicate();
+
+                range.limit(to).position(from);
+                buffer.asFloatBuffer().put(range);
+                buffer.position(buffer.position() + (to - from) * 4);
+            };
+        }
+
+        Section normalSection;
+        int normalCount;
+
+        if (quantize) {
+            normalCount = numVertices;
+            normalSection = (buffer, from, to) -> {
+                for (int i = from; i < to; i++) {
+                    for (int c = 0; c < 3; c++) {
+                        float normal = Math.max(-1, Math.min(1, normals.get(3 * i + c)));
+
+                        buffer.put((byte) Math.round(normal * Byte.MAX_VALUE));
+                    }
+
+                    buffer.put((byte) 0);
+                }
+            };
+        } else {
+            normalCount = numVertices * 3;
+            normalSection = (buffer, from, to) -> {
+                FloatBuffer range = normals.duplicate();
+
+                range.limit(to).position(from);
+                buffer.asFloatBuffer().put(range);
+                buffer.position(buffer.position() + (to - from) * 4);
+            };
+        }
+
+        Section indexSection;
+
+        if (shortIndices) {
+            indexSection = (buffer, from, to) -> {
+                for (int i = from; i < to; i++) {
+                    buffer.putShort((short) indices.get(i));
+                }
+            };
+        } else {
+            indexSection = (buffer, from, to) -> {
+                IntBuffer range = indices.duplicate();
+
+                range.limit(to).position(from);
+                buffer.asIntBuffer().put(range);
+                buffer.position(buffer.position() + (to - from) * 4);
+            };
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            ByteBuffer buffer = Buffers.allocateByteBuffer(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer[] pending = (binBytes > 0) ? new ByteBuffer[] {header, jsonChunk, binHeader}
+                                                  : new ByteBuffer[] {header, jsonChunk};
+
+            pending = write(channel, pending, buffer, positionSection, positionCount, quantize ? positionStride : 4);
+            pending = write(channel, pending, buffer, normalSection, normalCount, quantize ? normalStride : 4);
+            pending = write(channel, pending, buffer, indexSection, numIndices, indexSize);
+
+            buffer.clear();
+
+            for (long i = positionBytes + normalBytes + indexBytes; i < binBytes; i++) {
+                buffer.put((byte) 0); // the binary chunk is padded with zeros
+            }
+
+            buffer.flip();
+            write(channel, append(pending, buffer));
+        }
+    }
+
+    /**
+     * Copies the elements of a section into the buffer in ranges fitting into it and writes every range together
+     * with the buffers written before it.
+     *
+     * @param channel the channel to write to
+     * @param pending the buffers to write before the first range, will be written together with it
+     * @param buffer the buffer the ranges are copied into
+     * @param section the <code>Section</code> copying the ranges
+     * @param count the number of elements of the section
+     * @param elementBytes the number of bytes of an element
+     * @return the buffers that have still to be written
+     * @throws IOException if writing fails
+     */
+    private static ByteBuffer[] write(FileChannel channel, ByteBuffer[] pending, ByteBuffer buffer, Section section,
+                                      int count, int elementBytes) throws IOException {
+
+        int rangeSize = BUFFER_BYTES / elementBytes;
+
+        for (int from = 0; from < count; from += rangeSize) {
+            buffer.clear();
+            section.encode(buffer, from, Math.min(from + rangeSize, count));
+            buffer.flip();
+
+            write(channel, append(pending, buffer));
+            pending = new ByteBuffer[0];
+        }
+
+        return pending;
+    }
+
+    /**
+     * Writes all remaining bytes of the given buffers to the channel.
+     *
+     * @param channel the channel to write to
+     * @param buffers the buffers to write
+     * @throws IOException if writing fails
+     */
+    private static void write(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+
+        long remaining = 0;
+
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    private static ByteBuffer[] append(ByteBuffer[] buffers, ByteBuffer buffer) {
+        ByteBuffer[] appended = Arrays.copyOf(buffers, buffers.length + 1);
+
+        appended[buffers.length] = buffer;
+        return appended;
+    }
+
+    /**
+     * Returns the given length rounded up to a multiple of 4.
+     *
+     * @param length the length
+     * @return the padded length
+     */
+    private static long pad(long length) {
+        return (length + 3) & ~3L;
+    }
+
+    /**
+     * Builds the JSON chunk describing a mesh with a single primitive and the views into the binary chunk.
+     */
+    private static String json(int numVertices, int numIndices, boolean quantize, boolean shortIndices, float[] min,
+                               float[] max, float[] scale, int positionStride, int normalStride, long positionBytes,
+                               long normalBytes, long indexBytes, long binBytes) {
+
+        StringBuilder json = new StringBuilder();
+
+        json.append("{\"asset\":{\"version\":\"2.0\",\"generator\":\"").append(V8.class.getSimpleName()).append("\"}");
+
+        if (quantize) {
+            json.append(",\"extensionsUsed\":[\"KHR_mesh_quantization\"]");
+            json.append(",\"extensionsRequired\":[\"KHR_mesh_quantization\"]");
+        }
+
+        if (numIndices == 0) {
+            return json.append(",\"scene\":0,\"scenes\":[{\"nodes\":[]}]}").toString();
+        }
+
+        json.append(",\"scene\":0,\"scenes\":[{\"nodes\":[0]}]");
+        json.append(",\"nodes\":[{\"mesh\":0");
+
+        if (quantize) {
+            json.append(",\"translation\":").append(array(min));
+            json.append(",\"scale\":").append(array(scale));
+        }
+
+        json.append("}]");
+        json.append(",\"meshes\":[{\"primitives\":[{\"attributes\":{\"POSITION\":0,\"NORMAL\":1},\"indices\":2,")
+            .append("\"mode\":4}]}]");
+
+        json.append(",\"buffers\":[{\"byteLength\":").append(binBytes).append("}]");
+        json.append(",\"bufferViews\":[");
+        json.append("{\"buffer\":0,\"byteOffset\":0,\"byteLength\":").append(positionBytes)
+            .append(",\"byteStride\":").append(positionStride).append(",\"target\":").append(ARRAY_BUFFER).append("},");
+        json.append("{\"buffer\":0,\"byteOffset\":").append(positionBytes).append(",\"byteLength\":")
+            .append(normalBytes).append(",\"byteStride\":").append(normalStride).append(",\"target\":")
+            .append(ARRAY_BUFFER).append("},");
+        json.append("{\"buffer\":0,\"byteOffset\":").append(positionBytes + normalBytes).append(",\"byteLength\":")
+            .append(indexBytes).append(",\"target\":").append(ELEMENT_ARRAY_BUFFER).append("}]");
+
+        json.append(",\"accessors\":[");
+
+        if (quantize) {
+            long[] quantizedMax = new long[3];
+
+            for (int c = 0; c < 3; c++) {
+                quantizedMax[c] = Math.min(MAX_QUANTIZED, Math.round((max[c] - min[c]) / scale[c]));
+            }
+
+            json.append("{\"bufferView\":0,\"componentType\":").append(UNSIGNED_SHORT).append(",\"count\":")
+                .append(numVertices).append(",\"type\":\"VEC3\",\"min\":[0,0,0],\"max\":")
+                .append(Arrays.toString(quantizedMax).replace(" ", "")).append("},");
+            json.append("{\"bufferView\":1,\"componentType\":").append(BYTE).append(",\"normalized\":true")
+                .append(",\"count\":").append(numVertices).append(",\"type\":\"VEC3\"},");
+        } else {
+            json.append("{\"bufferView\":0,\"componentType\":").append(FLOAT).append(",\"count\":").append(numVertices)
+                .append(",\"type\":\"VEC3\",\"min\":").append(array(min)).append(",\"max\":").append(array(max))
+                .append("},");
+            json.append("{\"bufferView\":1,\"componentType\":").append(FLOAT).append(",\"count\":").append(numVertices)
+                .append(",\"type\":\"VEC3\"},");
+        }
+
+        json.append("{\"bufferView\":2,\"componentType\":").append(shortIndices ? UNSIGNED_SHORT : UNSIGNED_INT)
+            .append(",\"count\":").append(numIndices).append(",\"type\":\"SCALAR\"}]");
+
+        return json.append('}').toString();
+    }
+
+    private static String array(float[] values) {
+        return "[" + values[0] + "," + values[1] + "," + values[2] + "]";
+    }
+}
@@ -0,0 +1,379 @@
+package de.uni_passau.fim.seibt.v8.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Calendar;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.uni_passau.fim.seibt.v8.V8;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.Mesh;
+
+/**
+ * Writes <code>Mesh</code>es as .obj files. The lines are formatted as ASCII directly into byte arrays without
+ * <code>String.format</code>, chunks of lines are formatted in parallel and written in order through a
+ * <code>FileChannel</code>. At most two chunks per thread are in memory at any time, their arrays are reused within
+ * a file and kept in a pool of at most <code>POOL_BYTES</code> bytes shared by all writes afterwards. Chunks that
+ * grew beyond their initial size are not pooled. A file only takes as many chunks as it has chunks of lines.
+ * <p>
+ * Floats are written with up to <code>DECIMALS</code> digits after the decimal point and without trailing zeros,
+ * which is more than the precision of the coordinates of a mesh in the range of the volumes.
+ */
+class ObjWriter {
+
+    /**
+     * The maximum number of digits after the decimal point of a float.
+     */
+    static final int DECIMALS = 6;
+
+    /**
+     * The number of lines formatted by one task.
+     */
+    private static final int CHUNK_LINES = 1 << 16;
+
+    /**
+     * The initial size of the byte array of a chunk.
+     */
+    private static final int CHUNK_BYTES = CHUNK_LINES * 32;
+
+    /**
+     * The maximum number of bytes of the chunks kept in the pool between writes.
+     */
+    private static final int POOL_BYTES = 32 << 20;
+
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final long SCALE = 1_000_000; // 10^DECIMALS
+
+    private static final ExecutorService formatter = Executors.newFixedThreadPool(NUM_THREADS, r -> {
+        Thread thread = new Thread(r, "ObjWriter Formatter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final BlockingQueue<Chunk> pool =
+            new ArrayBlockingQueue<>(Math.max(1, Math.min(2 * NUM_THREADS, POOL_BYTES / CHUNK_BYTES)));
+
+    /**
+     * A growable byte array the lines of a chunk are formatted into.
+     */
+    private static class Chunk {
+
+        private byte[] bytes = new byte[CHUNK_BYTES];
+        private int length;
+
+        private void ensure(int additional) {
+
+            if (length + additional > bytes.length) {
+                byte[] larger = new byte[Math.max(bytes.length * 2, length + additional)];
+
+                System.arraycopy(bytes, 0, larger, 0, length);
+                bytes = larger;
+            }
+        }
+
+        private void put(byte b) {
+            ensure(1);
+            bytes[length++] = b;
+        }
+
+        private void put(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, length, b.length);
+            length += b.length;
+        }
+
+        /**
+         * Appends the decimal representation of the given value.
+         *
+         * @param value the value
+         */
+        private void putInt(long value) {
+            ensure(20);
+
+            if (value < 0) {
+                bytes[length++] = '-';
+                value = -value;
+            }
+
+            int end = length + digits(value);
+
+            for (int i = end - 1; i >= length; i--) {
+                bytes[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+
+            length = end;
+        }
+
+        /**
+         * Appends the given value with up to <code>DECIMALS</code> digits after the decimal point.
+         *
+         * @param value the value
+         */
+        private void putFloat(float value) {
+
+            if (Float.isNaN(value) || Float.isInfinite(value) || Math.abs(value) >= 1e12f) {
+                put(Float.toString(value).getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+
+            long scaled = Math.round(value * (double) SCALE);
+
+            if (scaled < 0) {
+                put((byte) '-');
+                scaled = -scaled;
+            }
+
+            putInt(scaled / SCALE);
+
+            long fraction = scaled % SCALE;
+
+            if (fraction == 0) {
+                return;
+            }
+
+            int decimals = DECIMALS;
+
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                decimals--;
+            }
+
+            ensure(1 + decimals);
+            bytes[length++] = '.';
+
+            for (int i = length + decimals - 1; i >= length; i--) {
+                bytes[i] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+
+            length += decimals;
+        }
+
+        /**
+         * Returns the number of decimal digits of the given non negative value.
+         *
+         * @param value the value
+         * @return the number of digits
+         */
+        private static int digits(long value) {
+            int digits = 1;
+
+            while (value >= 10) {
+                value /= 10;
+                digits++;
+            }
+
+            return digits;
+        }
+    }
+
+    /**
+     * Formats the lines <code>from</code> (inclusive) to <code>to</code> (exclusive) of a section into a
+     * <code>Chunk</code>.
+     */
+    private interface Section {
+
+        void format(Chunk chunk, int from, int to);
+    }
+
+    private static final byte[] VERTEX = "v ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NORMAL = "vn ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FACE = "f ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SEPARATOR = "//".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Writes the given <code>Mesh</code> to the given file, overwriting it if it exists. The buffers of the
+     * <code>Mesh</code> are not modified.
+     *
+     * @param mesh the <code>Mesh</code> to write
+     * @param file the file to write to
+     * @param name the name of the object in the file
+     * @throws IOException if the file could not be written
+     */
+    static void write(Mesh mesh, File file, String name) throws IOException {
+        FloatBuffer vertices = mesh.getVertices().duplicate();
+        FloatBuffer normals = mesh.getNormals().duplicate();
+        IntBuffer indices = mesh.getIndices().duplicate();
+        String header = String.format("# Created by %s on %tc\n\no %s\n", V8.class.getSimpleName(),
+                Calendar.getInstance(), name);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(2 * NUM_THREADS);
+            Queue<Future<Chunk>> pending = new ArrayDeque<>();
+            int numChunks = chunks(vertices.limit() / 6) + chunks(normals.limit() / 3) + chunks(indices.limit() / 3);
+
+            for (int i = 0; i < Math.min(numChunks, 2 * NUM_THREADS); i++) {
+                Chunk chunk = pool.poll();
+
+                free.add((chunk != null) ? chunk : new Chunk());
+            }
+
+            write(channel, ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
+
+            // every vertex is followed by the end point of its normal line which is not written
+            submit(vertices.limit() / 6, (chunk, from, to) -> {
+                for (int i = from; i < to; i++) {
+                    chunk.put(VERTEX);
+                    chunk.putFloat(vertices.get(6 * i));
+                    chunk.put((byte) ' ');
+                    chunk.putFloat(vertices.get(6 * i + 1));
+                    chunk.put((byte) ' ');
+                    chunk.putFloat(vertices.get(6 * i + 2));
+                    chunk.put((byte) '\n');
+                }
+            }, free, pending, channel, true);
+
+            submit(normals.limit() / 3, (chunk, from, to) -> {
+                for (int i = from; i < to; i++) {
+                    chunk.put(NORMAL);
+                    chunk.putFloat(normals.get(3 * i));
+                    chunk.put((byte) ' ');
+                    chunk.putFloat(normals.get(3 * i + 1));
+                    chunk.put((byte) ' ');
+                    chunk.putFloat(normals.get(3 * i + 2));
+                    chunk.put((byte) '\n');
+                }
+            }, free, pending, channel, true);
+
+            // vertices and normals are 1 indexed in .obj so we have to add 1 to every index
+            submit(indices.limit() / 3, (chunk, from, to) -> {
+                for (int i = from; i < to; i++) {
+                    chunk.put(FACE);
+
+                    for (int j = 0; j < 3; j++) {
+                        int index = indices.get(3 * i + j) + 1;
+
+                        if (j > 0) {
+                            chunk.put((byte) ' ');
+                        }
+
+                        chunk.putInt(index);
+                        chunk.put(SEPARATOR);
+                        chunk.putInt(index);
+                    }
+
+                    chunk.put((byte) '\n');
+                }
+            }, free, pending, channel, false);
+
+            while (!pending.isEmpty()) {
+                writeNext(pending, free, channel);
+            }
+
+            // chunks of a failed write may still be used by their tasks, so only a finished write returns them
+            for (Chunk chunk : free) {
+                if (chunk.bytes.length == CHUNK_BYTES) {
+                    pool.offer(chunk);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of chunks a section with the given number of lines is formatted in.
+     *
+     * @param numLines the number of lines of the section
+     * @return the number of chunks
+     */
+    private static int chunks(int numLines) {
+        return Math.max(1, (numLines + CHUNK_LINES - 1) / CHUNK_LINES);
+    }
+
+    /**
+     * Submits the formatting of the lines of a section in chunks of <code>CHUNK_LINES</code> lines, writing finished
+     * chunks in order whenever no free <code>Chunk</code> is left.
+     *
+     * @param numLines the number of lines of the section
+     * @param section the <code>Section</code> formatting the lines
+     * @param free the free <code>Chunk</code>s
+     * @param pending the chunks being formatted in the order they have to be written in
+     * @param channel the channel to write to
+     * @param blankLine whether to append an empty line after the section
+     * @throws IOException if writing fails
+     */
+    private static void submit(int numLines, Section section, BlockingQueue<Chunk> free,
+                               Queue<Future<Chunk>> pending, FileChannel channel, boolean blankLine)
+            throws IOException {
+
+        for (int from = 0; from < numLines || (from == 0 && blankLine); from += CHUNK_LINES) {
+            int start = from;
+            int end = Math.min(from + CHUNK_LINES, numLines);
+            boolean last = end == numLines;
+
+            while (free.isEmpty()) {
+                writeNext(pending, free, channel);
+            }
+
+            Chunk chunk = free.poll();
+
+            pending.add(formatter.submit(() -> {
+                chunk.length = 0;
+                section.format(chunk, start, end);
+
+                if (last && blankLine) {
+                    chunk.put((byte) '\n');
+                }
+
+                return chunk;
+            }));
+        }
+    }
+
+    /**
+     * Waits for the oldest pending chunk, writes it and returns it to the free chunks.
+     *
+     * @param pending the chunks being formatted
+     * @param free the free <code>Chunk</code>s
+     * @param channel the channel to write to
+     * @throws IOException if writing fails or formatting failed
+     */
+    private static void writeNext(Queue<Future<Chunk>> pending, BlockingQueue<Chunk> free, FileChannel channel)
+            throws IOException {
+
+        Chunk chunk;
+
+        try {
+            chunk = pending.remove().get();
+        } catch (InterruptedException e) {
+            pending.forEach(f -> f.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Writing the .obj file was interrupted.");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not format the .obj file.", e.getCause());
+        }
+
+        write(channel, ByteBuffer.wrap(chunk.bytes, 0, chunk.length));
+        free.add(chunk);
+    }
+
+    /**
+     * Writes all remaining bytes of the given buffer to the channel.
+     *
+     * @param channel the channel to write to
+     * @param buffer the bytes to write
+     * @throws IOException if writing fails
+     */
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
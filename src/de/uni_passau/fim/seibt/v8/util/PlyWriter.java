@@ -0,0 +1,162 @@
+package de.uni_passau.fim.seibt.v8.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Calendar;
+
+import de.uni_passau.fim.seibt.v8.V8;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.Mesh;
+
+/**
+ * Writes <code>Mesh</code>es as binary little endian .ply files. Unlike .stl files the vertices are shared between
+ * the faces and the normals computed by the <code>MCRunner</code> are kept. The data is encoded through a direct
+ * buffer of fixed size into a <code>FileChannel</code>.
+ * <p>
+ * Optionally positions and normals are quantized to 16 bit. Positions are then stored as unsigned shorts spanning
+ * the bounding box of the mesh, the header contains the comments 'position_offset x y z' and
+ * 'position_scale x y z' such that a position is <code>offset + value * scale</code>. Normals are stored as shorts
+ * with 32767 representing 1.
+ */
+class PlyWriter {
+
+    /**
+     * The size of the buffer the data is encoded into before it is written.
+     */
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    /**
+     * The largest value of a quantized position.
+     */
+    private static final int MAX_QUANTIZED = 0xffff;
+
+    /**
+     * Writes the given <code>Mesh</code> to the given file, overwriting it if it exists. The buffers of the
+     * <code>Mesh</code> are not modified.
+     *
+     * @param mesh the <code>Mesh</code> to write
+     * @param file the file to write to
+     * @param quantize whether to quantize positions and normals to 16 bit
+     * @throws IOException if the file could not be written
+     */
+    static void write(Mesh mesh, File file, boolean quantize) throws IOException {
+        FloatBuffer vertices = mesh.getVertices().duplicate();
+        FloatBuffer normals = mesh.getNormals().duplicate();
+        IntBuffer indices = mesh.getIndices().duplicate();
+        int numVertices = normals.limit() / 3;
+        int numFaces = indices.limit() / 3;
+        float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+        float[] scale = {1, 1, 1};
+        StringBuilder header = new StringBuilder();
+
+        header.append("ply\n");
+        header.append("format binary_little_endian 1.0\n");
+        header.append(String.format("comment Created by %s on %tc\n", V8.class.getSimpleName(),
+                Calendar.getInstance()));
+
+        if (quantize) {
+            float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+
+            for (int i = 0; i < numVertices; i++) {
+                for (int c = 0; c < 3; c++) {
+                    min[c] = Math.min(min[c], vertices.get(6 * i + c));
+                    max[c] = Math.max(max[c], vertices.get(6 * i + c));
+                }
+            }
+
+            for (int c = 0; c < 3; c++) {
+                scale[c] = (max[c] > min[c]) ? (max[c] - min[c]) / MAX_QUANTIZED : 1;
+            }
+
+            header.append(String.format("comment position_offset %s %s %s\n", min[0], min[1], min[2]));
+            header.append(String.format("comment position_scale %s %s %s\n", scale[0], scale[1], scale[2]));
+        }
+
+        String positionType = quantize ? "ushort" : "float";
+        String normalType = quantize ? "short" : "float";
+
+        header.append("element vertex ").append(numVertices).append('\n');
+        header.append("property ").append(positionType).append(" x\n");
+        header.append("property ").append(positionType).append(" y\n");
+        header.append("property ").append(positionType).append(" z\n");
+        header.append("property ").append(normalType).append(" nx\n");
+        header.append("property ").append(normalType).append(" ny\n");
+        header.append("property ").append(normalType).append(" nz\n");
+        header.append("element face ").append(numFaces).append('\n');
+        header.append("property list uchar int vertex_indices\n");
+        header.append("end_header\n");
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            ByteBuffer buffer = Buffers.allocateByteBuffer(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.put(header.toString().getBytes(StandardCharsets.US_ASCII));
+
+            for (int i = 0; i < numVertices; i++) {
+
+                if (buffer.remaining() < 6 * 4) {
+                    flush(channel, buffer);
+                }
+
+                if (quantize) {
+                    for (int c = 0; c < 3; c++) {
+                        long value = Math.round((vertices.get(6 * i + c) - min[c]) / scale[c]);
+
+                        buffer.putShort((short) Math.max(0, Math.min(MAX_QUANTIZED, value)));
+                    }
+
+                    for (int c = 0; c < 3; c++) {
+                        float normal = Math.max(-1, Math.min(1, normals.get(3 * i + c)));
+
+                        buffer.putShort((short) Math.round(normal * Short.MAX_VALUE));
+                    }
+                } else {
+                    buffer.putFloat(vertices.get(6 * i));
+                    buffer.putFloat(vertices.get(6 * i + 1));
+                    buffer.putFloat(vertices.get(6 * i + 2));
+                    buffer.putFloat(normals.get(3 * i));
+                    buffer.putFloat(normals.get(3 * i + 1));
+                    buffer.putFloat(normals.get(3 * i + 2));
+                }
+            }
+
+            for (int i = 0; i < numFaces; i++) {
+
+                if (buffer.remaining() < 1 + 3 * 4) {
+                    flush(channel, buffer);
+                }
+
+                buffer.put((byte) 3);
+                buffer.putInt(indices.get(3 * i));
+                buffer.putInt(indices.get(3 * i + 1));
+                buffer.putInt(indices.get(3 * i + 2));
+            }
+
+            flush(channel, buffer);
+        }
+    }
+
+    /**
+     * Writes the contents of the given buffer to the channel and clears it.
+     *
+     * @param channel the channel to write to
+     * @param buffer the buffer to write
+     * @throws IOException if writing fails
+     */
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+}
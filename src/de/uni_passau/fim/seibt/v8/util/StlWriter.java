@@ -0,0 +1,196 @@
+package de.uni_passau.fim.seibt.v8.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.uni_passau.fim.seibt.v8.V8;
+import de.uni_passau.fim.seibt.v8.model.mc_alg.Mesh;
+
+/**
+ * Writes <code>Mesh</code>es as binary .stl files. As every face occupies the same number of bytes, the position of
+ * every face in the file is known in advance. Ranges of faces are encoded in parallel, each thread into its own
+ * direct buffer of fixed size, and written to their positions using positional writes on a shared
+ * <code>FileChannel</code>. The memory used does not depend on the size of the mesh.
+ */
+class StlWriter {
+
+    /**
+     * The size of the header preceding the number of faces.
+     */
+    static final int HEADER_BYTES = 80;
+
+    /**
+     * The size of a face: the normal and three vertices of three floats each and the attribute byte count.
+     */
+    static final int FACE_BYTES = 12 * 4 + 2;
+
+    /**
+     * The number of faces encoded into a buffer before it is written.
+     */
+    private static final int CHUNK_FACES = 1 << 14;
+
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final ExecutorService encoder = Executors.newFixedThreadPool(NUM_THREADS, r -> {
+        Thread thread = new Thread(r, "StlWriter Encoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ThreadLocal<ByteBuffer> buffers =
+            ThreadLocal.withInitial(() -> Buffers.allocateByteBuffer(CHUNK_FACES * FACE_BYTES)
+                                                 .order(ByteOrder.LITTLE_ENDIAN));
+
+    /**
+     * Writes the given <code>Mesh</code> to the given file, overwriting it if it exists. The buffers of the
+     * <code>Mesh</code> are not modified.
+     *
+     * @param mesh the <code>Mesh</code> to write
+     * @param file the file to write to
+     * @throws IOException if the file could not be written
+     */
+    static void write(Mesh mesh, File file) throws IOException {
+        FloatBuffer vertices = mesh.getVertices().duplicate();
+        IntBuffer indices = mesh.getIndices().duplicate();
+        long numFaces = indices.limit() / 3;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + 4).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] headerString = String.format("Created by %s on %tc", V8.class.getSimpleName(),
+                    Calendar.getInstance()).getBytes(StandardCharsets.US_ASCII);
+
+            header.put(headerString, 0, Math.min(headerString.length, HEADER_BYTES));
+            header.position(HEADER_BYTES);
+            header.putInt((int) numFaces); // an unsigned 32 bit integer
+            header.flip();
+
+            write(channel, header, 0);
+
+            AtomicLong next = new AtomicLong();
+            List<Future<?>> workers = new ArrayList<>();
+
+            for (int i = 0; i < NUM_THREADS; i++) {
+                workers.add(encoder.submit(() -> {
+                    long from;
+
+                    while ((from = next.getAndAdd(CHUNK_FACES)) < numFaces) {
+                        long to = Math.min(from + CHUNK_FACES, numFaces);
+                        ByteBuffer buffer = buffers.get();
+
+                        buffer.clear();
+                        encode(vertices, indices, (int) from, (int) to, buffer);
+                        buffer.flip();
+
+                        write(channel, buffer, HEADER_BYTES + 4 + from * FACE_BYTES);
+                    }
+
+                    return null;
+                }));
+            }
+
+            try {
+                for (Future<?> worker : workers) {
+                    worker.get();
+                }
+            } catch (InterruptedException e) {
+                next.set(numFaces); // stop the workers
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Writing the .stl file was interrupted.");
+            } catch (ExecutionException e) {
+                next.set(numFaces);
+
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+
+                throw new IOException("Could not encode the .stl file.", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Encodes the faces <code>from</code> (inclusive) to <code>to</code> (exclusive) into the given buffer. The
+     * normal of a face is computed from its vertices, it is 0 for degenerate faces.
+     *
+     * @param vertices the vertices of the mesh, see {@link Mesh#getVertices()}
+     * @param indices the indices of the mesh
+     * @param from the first face
+     * @param to the face after the last face
+     * @param buffer the buffer to encode the faces into
+     */
+    private static void encode(FloatBuffer vertices, IntBuffer indices, int from, int to, ByteBuffer buffer) {
+
+        for (int face = from; face < to; face++) {
+            int i1 = indices.get(3 * face) * 6; // *6 instead of *3 because we have to skip the normal points
+            int i2 = indices.get(3 * face + 1) * 6;
+            int i3 = indices.get(3 * face + 2) * 6;
+
+            float x1 = vertices.get(i1);
+            float y1 = vertices.get(i1 + 1);
+            float z1 = vertices.get(i1 + 2);
+            float x2 = vertices.get(i2);
+            float y2 = vertices.get(i2 + 1);
+            float z2 = vertices.get(i2 + 2);
+            float x3 = vertices.get(i3);
+            float y3 = vertices.get(i3 + 1);
+            float z3 = vertices.get(i3 + 2);
+
+            // (v2 - v1) x (v3 - v1)
+            float ax = x2 - x1;
+            float ay = y2 - y1;
+            float az = z2 - z1;
+            float bx = x3 - x1;
+            float by = y3 - y1;
+            float bz = z3 - z1;
+            float nx = ay * bz - az * by;
+            float ny = az * bx - ax * bz;
+            float nz = ax * by - ay * bx;
+            float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+
+            if (length > 0) {
+                nx /= length;
+                ny /= length;
+                nz /= length;
+            }
+
+            buffer.putFloat(nx).putFloat(ny).putFloat(nz);
+            buffer.putFloat(x1).putFloat(y1).putFloat(z1);
+            buffer.putFloat(x2).putFloat(y2).putFloat(z2);
+            buffer.putFloat(x3).putFloat(y3).putFloat(z3);
+            buffer.putShort((short) 0); // the attribute byte count
+        }
+    }
+
+    /**
+     * Writes all remaining bytes of the given buffer to the channel starting at the given position.
+     *
+     * @param channel the channel to write to
+     * @param buffer the bytes to write
+     * @param position the position in the file
+     * @throws IOException if writing fails
+     */
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package de.uni_passau.fim.seibt.v8.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.uni_passau.fim.seibt.v8.model.mc_alg.Mesh;
+
+import static de.uni_passau.fim.seibt.v8.util.V8mWriter.HEADER_BYTES;
+import static de.uni_passau.fim.seibt.v8.util.V8mWriter.MAGIC;
+import static de.uni_passau.fim.seibt.v8.util.V8mWriter.MAX_OCTAHEDRAL;
+import static de.uni_passau.fim.seibt.v8.util.V8mWriter.VERSION;
+import static de.uni_passau.fim.seibt.v8.util.V8mWriter.signNotZero;
+
+/**
+ * Reads .v8m files written by the {@link Exporter}, see <code>V8mWriter</code> for the format. The file is mapped
+ * into memory and its chunks are decoded in parallel, each directly into its range of the direct buffers of the
+ * returned <code>Mesh</code>, which can be handed to OpenGL as they are.
+ */
+public class V8mReader {
+
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final ExecutorService decoder = Executors.newFixedThreadPool(NUM_THREADS, r -> {
+        Thread thread = new Thread(r, "V8mReader Decoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Reads the <code>Mesh</code> stored in the given .v8m file. The end points of the normal lines are computed
+     * from the positions and the normals.
+     *
+     * @param file
+     *         the file to read
+     *
+     * @return the <code>Mesh</code>
+     *
+     * @throws IOException
+     *         if the file could not be read, is not a valid .v8m file or is 2 GiB or larger
+     */
+    public static Mesh read(File file) throws IOException {
+        ByteBuffer data;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file.getName() + " is too large, .v8m files of 2 GiB or more are not supported.");
+            }
+
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        if (data.limit() < HEADER_BYTES || data.getInt(0) != MAGIC) {
+            throw new IOException(file.getName() + " is not a .v8m file.");
+        }
+
+        if (data.getInt(4) != VERSION) {
+            throw new IOException(file.getName() + " has the unsupported .v8m version " + data.getInt(4) + ".");
+        }
+
+        data.position(8);
+
+        int numVertices = data.getInt();
+        int numIndices = data.getInt();
+        float[] min = {data.getFloat(), data.getFloat(), data.getFloat()};
+        float[] scale = {data.getFloat(), data.getFloat(), data.getFloat()};
+        int vertexChunk = data.getInt();
+        int triangleChunk = data.getInt();
+
+        // the buffers must be addressable in bytes and every vertex (5 varints) and index (1 varint) takes at least
+        // one byte per varint in the file, so corrupt counts are rejected before anything is allocated for them
+        if (numVertices < 0 || 24L * numVertices > Integer.MAX_VALUE || numIndices < 0 || numIndices % 3 != 0
+                || 4L * numIndices > Integer.MAX_VALUE || 5L * numVertices + numIndices > data.limit() - HEADER_BYTES
+                || vertexChunk <= 0 || triangleChunk <= 0) {
+            throw new IOException(file.getName() + " has an invalid .v8m header.");
+        }
+
+        int vertexChunks = (int) ((numVertices + (long) vertexChunk - 1) / vertexChunk);
+        int indexChunks = (int) ((numIndices / 3 + (long) triangleChunk - 1) / triangleChunk);
+        long offset = HEADER_BYTES + 4L * (vertexChunks + indexChunks);
+        long[] offsets = new long[vertexChunks + indexChunks + 1];
+
+        if (offset > data.limit()) {
+            throw new IOException(file.getName() + " is truncated.");
+        }
+
+        for (int c = 0; c < vertexChunks + indexChunks; c++) {
+            offsets[c] = offset;
+            offset += data.getInt() & 0xffffffffL;
+        }
+
+        offsets[offsets.length - 1] = offset;
+
+        if (offset > data.limit()) {
+            throw new IOException(file.getName() + " is truncated.");
+        }
+
+        FloatBuffer vertices = Buffers.allocateFloatBuffer(numVertices * 6);
+        FloatBuffer normals = Buffers.allocateFloatBuffer(numVertices * 3);
+        IntBuffer indices = Buffers.allocateIntBuffer(numIndices);
+        List<Future<?>> chunks = new ArrayList<>();
+
+        for (int c = 0; c < vertexChunks + indexChunks; c++) {
+            ByteBuffer chunk = data.duplicate();
+            int index = c;
+
+            chunk.limit((int) offsets[c + 1]).position((int) offsets[c]);
+
+            chunks.add(decoder.submit(() -> {
+
+                if (index < vertexChunks) {
+                    int from = index * vertexChunk;
+
+                    decodeVertices(chunk, from, Math.min(from + vertexChunk, numVertices), min, scale, vertices,
+                            normals);
+                } else {
+                    int from = 3 * (index - vertexChunks) * triangleChunk;
+
+                    decodeIndices(chunk, from, Math.min(from + 3 * triangleChunk, numIndices), numVertices, indices);
+                }
+
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<?> chunk : chunks) {
+                chunk.get();
+            }
+        } catch (InterruptedException e) {
+            chunks.forEach(f -> f.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Reading " + file.getName() + " was interrupted.");
+        } catch (ExecutionException e) {
+            chunks.forEach(f -> f.cancel(true));
+            throw new IOException(file.getName() + " is corrupt.", e.getCause());
+        }
+
+        return new Mesh(vertices, normals, indices);
+    }
+
+    /**
+     * Decodes the vertices <code>from</code> (inclusive) to <code>to</code> (exclusive) from the given chunk.
+     *
+     * @param chunk
+     *         the bytes of the vertex chunk
+     * @param from
+     *         the first vertex
+     * @param to
+     *         the vertex after the last vertex
+     * @param min
+     *         the minimum of the positions
+     * @param scale
+     *         the scale of the quantized positions
+     * @param vertices
+     *         the buffer to store the positions and the end points of the normal lines in
+     * @param normals
+     *         the buffer to store the normals in
+     */
+    private static void decodeVertices(ByteBuffer chunk, int from, int to, float[] min, float[] scale,
+                                       FloatBuffer vertices, FloatBuffer normals) {
+
+        int[] current = new int[5];
+        float[] normal = new float[3];
+
+        for (int i = from; i < to; i++) {
+
+            for (int c = 0; c < 5; c++) {
+                current[c] += getVarint(chunk);
+            }
+
+            decodeOctahedral(current[3], current[4], normal);
+
+            for (int c = 0; c < 3; c++) {
+                float position = min[c] + current[c] * scale[c];
+
+                vertices.put(6 * i + c, position);
+                vertices.put(6 * i + 3 + c, position + normal[c]);
+                normals.put(3 * i + c, normal[c]);
+            }
+        }
+    }
+
+    /**
+     * Decodes the indices <code>from</code> (inclusive) to <code>to</code> (exclusive) from the given chunk.
+     *
+     * @param chunk
+     *         the bytes of the index chunk
+     * @param from
+     *         the first index
+     * @param to
+     *         the index after the last index
+     * @param numVertices
+     *         the number of vertices of the mesh
+     * @param indices
+     *         the buffer to store the indices in
+     */
+    private static void decodeIndices(ByteBuffer chunk, int from, int to, int numVertices, IntBuffer indices) {
+        int index = 0;
+
+        for (int i = from; i < to; i++) {
+            index += getVarint(chunk);
+
+            if (index < 0 || index >= numVertices) {
+                throw new IllegalStateException("index " + index + " is out of bounds!");
+            }
+
+            indices.put(i, index);
+        }
+    }
+
+    /**
+     * Stores the normal with the given octahedral encoding (see <code>V8mWriter.encodeOctahedral</code>) in
+     * <code>normal</code>.
+     *
+     * @param encodedU
+     *         the first component of the encoding
+     * @param encodedV
+     *         the second component of the encoding
+     * @param normal
+     *         the array to store the normal in
+     */
+    private static void decodeOctahedral(int encodedU, int encodedV, float[] normal) {
+        float u = (float) encodedU / MAX_OCTAHEDRAL;
+        float v = (float) encodedV / MAX_OCTAHEDRAL;
+        float x = u;
+        float y = v;
+        float z = 1 - Math.abs(u) - Math.abs(v);
+
+        if (z < 0) {
+            x = (1 - Math.abs(v)) * signNotZero(u);
+            y = (1 - Math.abs(u)) * signNotZero(v);
+        }
+
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+
+        normal[0] = x / length;
+        normal[1] = y / length;
+        normal[2] = z / length;
+    }
+
+    /**
+     * Reads a value in zigzag varint encoding.
+     *
+     * @param chunk
+     *         the buffer to read from
+     *
+     * @return the value
+     *
+     * @throws BufferUnderflowException
+     *         if the buffer ends before the value
+     */
+    private static int getVarint(ByteBuffer chunk) {
+        int zigzag = 0;
+        int shift = 0;
+        byte b;
+
+        do {
+
+            if (shift > 28) {
+                throw new IllegalStateException("varint is too long!");
+            }
+
+            b = chunk.get();
+            zigzag |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+}
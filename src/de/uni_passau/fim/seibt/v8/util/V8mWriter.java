@@ -0,0 +1,368 @@
+package de.uni_passau.fim.seibt.v8.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.uni_passau.fim.seibt.v8.model.mc_alg.Mesh;
+
+/**
+ * Writes <code>Mesh</code>es as compressed .v8m files which can be read back by a <code>V8mReader</code>.
+ * <p>
+ * A .v8m file (all values little endian) starts with a header:
+ * <pre>
+ * int      magic ('V8M1')
+ * int      version
+ * int      number of vertices
+ * int      number of indices
+ * float[3] minimum of the positions
+ * float[3] scale of the quantized positions
+ * int      vertices per vertex chunk
+ * int      triangles per index chunk
+ * int[]    byte length of every vertex chunk followed by the byte length of every index chunk
+ * </pre>
+ * followed by the chunks. Every chunk can be decoded on its own given the header. A vertex chunk contains for every
+ * vertex the 16 bit quantized position (<code>position = minimum + value * scale</code>) and the 16 bit octahedral
+ * encoding of the normal, each of the 5 components as the difference to the previous vertex of the chunk in zigzag
+ * varint encoding. An index chunk contains the indices of its triangles, each as the difference to the previous
+ * index of the chunk in zigzag varint encoding.
+ * <p>
+ * The vertices are stored in the order they are first used by the triangles. Consecutive vertices then lie close to
+ * each other, which keeps the differences small and improves the locality of the vertex fetches when the mesh is
+ * drawn. Vertices not used by any triangle are dropped. Chunks are encoded in parallel, at most two per thread are
+ * in memory at any time.
+ */
+class V8mWriter {
+
+    static final int MAGIC = 0x314D3856; // 'V8M1'
+    static final int VERSION = 2;
+
+    /**
+     * The size of the header without the chunk lengths.
+     */
+    static final int HEADER_BYTES = 4 * 4 + 6 * 4 + 2 * 4;
+
+    /**
+     * The number of vertices in a vertex chunk.
+     */
+    static final int VERTEX_CHUNK = 1 << 14;
+
+    /**
+     * The number of triangles in an index chunk.
+     */
+    static final int TRIANGLE_CHUNK = 1 << 14;
+
+    /**
+     * The largest value of a quantized position.
+     */
+    static final int MAX_QUANTIZED = 0xffff;
+
+    /**
+     * The largest value of a component of an octahedral encoded normal.
+     */
+    static final int MAX_OCTAHEDRAL = Short.MAX_VALUE;
+
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final ExecutorService encoder = Executors.newFixedThreadPool(NUM_THREADS, r -> {
+        Thread thread = new Thread(r, "V8mWriter Encoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A growable byte array a chunk is encoded into.
+     */
+    private static class Chunk {
+
+        private byte[] bytes = new byte[1 << 16];
+        private int length;
+
+        /**
+         * Appends the given value in zigzag varint encoding.
+         *
+         * @param value the value
+         */
+        private void putVarint(int value) {
+
+            if (length + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+
+            int zigzag = (value << 1) ^ (value >> 31);
+
+            while ((zigzag & ~0x7f) != 0) {
+                bytes[length++] = (byte) ((zigzag & 0x7f) | 0x80);
+                zigzag >>>= 7;
+            }
+
+            bytes[length++] = (byte) zigzag;
+        }
+    }
+
+    /**
+     * Writes the given <code>Mesh</code> to the given file, overwriting it if it exists. The buffers of the
+     * <code>Mesh</code> are not modified.
+     *
+     * @param mesh the <code>Mesh</code> to write
+     * @param file the file to write to
+     * @throws IOException if the file could not be written
+     */
+    static void write(Mesh mesh, File file) throws IOException {
+        FloatBuffer vertices = mesh.getVertices().duplicate();
+        FloatBuffer normals = mesh.getNormals().duplicate();
+        IntBuffer indices = mesh.getIndices().duplicate();
+        int numIndices = indices.limit();
+
+        // order the vertices by their first use, newIndex maps an index of the mesh to the index in the file
+        int[] newIndex = new int[normals.limit() / 3];
+        int[] order = new int[newIndex.length];
+        int numVertices = 0;
+
+        Arrays.fill(newIndex, -1);
+
+        for (int i = 0; i < numIndices; i++) {
+            int index = indices.get(i);
+
+            if (newIndex[index] < 0) {
+                newIndex[index] = numVertices;
+                order[numVertices++] = index;
+            }
+        }
+
+        float[] min = {0, 0, 0};
+        float[] scale = {1, 1, 1};
+
+        if (numVertices > 0) {
+            float[] max = new float[3];
+
+            Arrays.fill(min, Float.POSITIVE_INFINITY);
+            Arrays.fill(max, Float.NEGATIVE_INFINITY);
+
+            for (int i = 0; i < numVertices; i++) {
+                for (int c = 0; c < 3; c++) {
+                    min[c] = Math.min(min[c], vertices.get(6 * order[i] + c));
+                    max[c] = Math.max(max[c], vertices.get(6 * order[i] + c));
+                }
+            }
+
+            for (int c = 0; c < 3; c++) {
+                scale[c] = (max[c] > min[c]) ? (max[c] - min[c]) / MAX_QUANTIZED : 1;
+            }
+        }
+
+        int numTriangles = numIndices / 3;
+        int vertexChunks = (numVertices + VERTEX_CHUNK - 1) / VERTEX_CHUNK;
+        int indexChunks = (numTriangles + TRIANGLE_CHUNK - 1) / TRIANGLE_CHUNK;
+        int numVerticesFinal = numVertices;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + 4 * (vertexChunks + indexChunks))
+                                      .order(ByteOrder.LITTLE_ENDIAN);
+
+        header.putInt(MAGIC).putInt(VERSION).putInt(numVertices).putInt(numIndices);
+        header.putFloat(min[0]).putFloat(min[1]).putFloat(min[2]);
+        header.putFloat(scale[0]).putFloat(scale[1]).putFloat(scale[2]);
+        header.putInt(VERTEX_CHUNK).putInt(TRIANGLE_CHUNK);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            Queue<Future<Chunk>> pending = new ArrayDeque<>();
+            long position = header.capacity(); // the chunk lengths are written when they are known
+
+            for (int c = 0; c < vertexChunks + indexChunks; c++) {
+
+                if (pending.size() >= 2 * NUM_THREADS) {
+                    position = writeNext(pending, header, channel, position);
+                }
+
+                int chunk = c;
+
+                pending.add(encoder.submit(() -> {
+                    Chunk bytes = new Chunk();
+
+                    if (chunk < vertexChunks) {
+                        int from = chunk * VERTEX_CHUNK;
+
+                        encodeVertices(vertices, normals, order, from, Math.min(from + VERTEX_CHUNK, numVerticesFinal),
+                                min, scale, bytes);
+                    } else {
+                        int from = (chunk - vertexChunks) * TRIANGLE_CHUNK;
+
+                        encodeIndices(indices, newIndex, 3 * from, 3 * Math.min(from + TRIANGLE_CHUNK, numTriangles),
+                                bytes);
+                    }
+
+                    return bytes;
+                }));
+            }
+
+            while (!pending.isEmpty()) {
+                position = writeNext(pending, header, channel, position);
+            }
+
+            header.flip();
+            write(channel, header, 0);
+        }
+    }
+
+    /**
+     * Encodes the vertices <code>from</code> (inclusive) to <code>to</code> (exclusive) in the order of the file.
+     *
+     * @param vertices the vertices of the mesh, see {@link Mesh#getVertices()}
+     * @param normals the normals of the mesh
+     * @param order the indices of the vertices of the mesh in the order of the file
+     * @param from the first vertex
+     * @param to the vertex after the last vertex
+     * @param min the minimum of the positions
+     * @param scale the scale of the quantized positions
+     * @param chunk the <code>Chunk</code> to encode the vertices into
+     */
+    private static void encodeVertices(FloatBuffer vertices, FloatBuffer normals, int[] order, int from, int to,
+                                       float[] min, float[] scale, Chunk chunk) {
+
+        int[] previous = new int[5];
+        int[] current = new int[5];
+
+        for (int i = from; i < to; i++) {
+            int vertex = order[i];
+
+            for (int c = 0; c < 3; c++) {
+                int value = Math.round((vertices.get(6 * vertex + c) - min[c]) / scale[c]);
+
+                current[c] = Math.max(0, Math.min(MAX_QUANTIZED, value));
+            }
+
+            encodeOctahedral(normals.get(3 * vertex), normals.get(3 * vertex + 1), normals.get(3 * vertex + 2),
+                    current);
+
+            for (int c = 0; c < 5; c++) {
+                chunk.putVarint(current[c] - previous[c]);
+                previous[c] = current[c];
+            }
+        }
+    }
+
+    /**
+     * Encodes the indices <code>from</code> (inclusive) to <code>to</code> (exclusive) replacing them by the indices
+     * of the vertices in the file.
+     *
+     * @param indices the indices of the mesh
+     * @param newIndex the indices of the vertices in the file
+     * @param from the first index
+     * @param to the index after the last index
+     * @param chunk the <code>Chunk</code> to encode the indices into
+     */
+    private static void encodeIndices(IntBuffer indices, int[] newIndex, int from, int to, Chunk chunk) {
+        int previous = 0;
+
+        for (int i = from; i < to; i++) {
+            int index = newIndex[indices.get(i)];
+
+            chunk.putVarint(index - previous);
+            previous = index;
+        }
+    }
+
+    /**
+     * Stores the octahedral encoding of the given normal in components 3 and 4 of <code>encoded</code>. The normal
+     * is projected onto the octahedron |x| + |y| + |z| = 1 whose lower half is folded over the upper one.
+     *
+     * @param x the x component of the normal
+     * @param y the y component of the normal
+     * @param z the z component of the normal
+     * @param encoded the array to store the encoding in
+     */
+    static void encodeOctahedral(float x, float y, float z, int[] encoded) {
+        float length = Math.abs(x) + Math.abs(y) + Math.abs(z);
+        float u = 0;
+        float v = 0;
+
+        if (length > 0) {
+            u = x / length;
+            v = y / length;
+
+            if (z < 0) {
+                float foldedU = (1 - Math.abs(v)) * signNotZero(u);
+                float foldedV = (1 - Math.abs(u)) * signNotZero(v);
+
+                u = foldedU;
+                v = foldedV;
+            }
+        }
+
+        encoded[3] = Math.round(u * MAX_OCTAHEDRAL);
+        encoded[4] = Math.round(v * MAX_OCTAHEDRAL);
+    }
+
+    /**
+     * Returns the sign of the given value, counting 0 as positive. Unlike <code>Math.signum</code> this does not
+     * collapse the folded normals with a component of 0 onto the axes.
+     *
+     * @param value the value
+     * @return 1 if <code>value</code> is greater or equal to 0, -1 otherwise
+     */
+    static float signNotZero(float value) {
+        return (value >= 0) ? 1 : -1;
+    }
+
+    /**
+     * Waits for the oldest pending chunk, writes it at the given position and records its length in the header.
+     *
+     * @param pending the chunks being encoded
+     * @param header the header
+     * @param channel the channel to write to
+     * @param position the position of the chunk in the file
+     * @return the position of the next chunk
+     * @throws IOException if writing fails or encoding failed
+     */
+    private static long writeNext(Queue<Future<Chunk>> pending, ByteBuffer header, FileChannel channel,
+                                  long position) throws IOException {
+
+        Chunk chunk;
+
+        try {
+            chunk = pending.remove().get();
+        } catch (InterruptedException e) {
+            pending.forEach(f -> f.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Writing the .v8m file was interrupted.");
+        } catch (ExecutionException e) {
+            pending.forEach(f -> f.cancel(true));
+            throw new IOException("Could not encode the .v8m file.", e.getCause());
+        }
+
+        header.putInt(chunk.length);
+        write(channel, ByteBuffer.wrap(chunk.bytes, 0, chunk.length), position);
+
+        return position + chunk.length;
+    }
+
+    /**
+     * Writes all remaining bytes of the given buffer to the channel starting at the given position.
+     *
+     * @param channel the channel to write to
+     * @param buffer the bytes to write
+     * @param position the position in the file
+     * @throws IOException if writing fails
+     */
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
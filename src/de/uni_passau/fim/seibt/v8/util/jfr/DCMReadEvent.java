@@ -0,0 +1,30 @@
+package de.uni_passau.fim.seibt.v8.util.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event covering the decoding of a single frame of a DICOM file.
+ */
+@Name("de.uni_passau.fim.seibt.v8.DCMRead")
+@Label("DICOM Read")
+@Category({"V8", "DICOM"})
+@Description("A frame decoded from a DICOM file.")
+public class DCMReadEvent extends Event {
+
+    @Label("File")
+    public String file;
+
+    @Label("Frame")
+    @Description("The index of the frame in the file.")
+    public int frameIndex;
+
+    @Label("Width")
+    public int width;
+
+    @Label("Height")
+    public int height;
+}
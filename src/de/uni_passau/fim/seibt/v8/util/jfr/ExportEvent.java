@@ -0,0 +1,26 @@
+package de.uni_passau.fim.seibt.v8.util.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event covering the export of a <code>Mesh</code> to a file.
+ */
+@Name("de.uni_passau.fim.seibt.v8.Export")
+@Label("Mesh Export")
+@Category({"V8", "Export"})
+@Description("A mesh written to a file by the Exporter.")
+public class ExportEvent extends Event {
+
+    @Label("Format")
+    public String format;
+
+    @Label("File")
+    public String file;
+
+    @Label("Triangles")
+    public int triangles;
+}
@@ -0,0 +1,30 @@
+package de.uni_passau.fim.seibt.v8.util.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event covering the conversion of the current state of an <code>MCRunner</code> into a
+ * <code>Mesh</code>. The time the mesh consumer takes to accept the <code>Mesh</code> is not included.
+ */
+@Name("de.uni_passau.fim.seibt.v8.MeshPublish")
+@Label("Mesh Publish")
+@Category({"V8", "Marching Cubes"})
+@Description("The MCRunner copying its current mesh into buffers for the mesh consumer.")
+public class MeshPublishEvent extends Event {
+
+    @Label("Vertices")
+    public int vertices;
+
+    @Label("Triangles")
+    public int triangles;
+
+    @Label("Size")
+    @Description("The size of the buffers of the mesh.")
+    @DataAmount
+    public long bytes;
+}
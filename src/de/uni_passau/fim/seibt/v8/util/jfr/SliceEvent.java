@@ -0,0 +1,33 @@
+package de.uni_passau.fim.seibt.v8.util.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event covering one slice (layer of cubes) processed by the <code>MCRunner</code>.
+ */
+@Name("de.uni_passau.fim.seibt.v8.Slice")
+@Label("Marching Cubes Slice")
+@Category({"V8", "Marching Cubes"})
+@Description("A layer of cubes processed by the MCRunner.")
+public class SliceEvent extends Event {
+
+    @Label("Z")
+    @Description("The z coordinate of the layer.")
+    public int z;
+
+    @Label("Cubes")
+    @Description("The number of cubes in the layer.")
+    public int cubes;
+
+    @Label("Active Cubes")
+    @Description("The number of cubes the surface passes through.")
+    public int activeCubes;
+
+    @Label("Triangles")
+    @Description("The number of triangles produced for the layer.")
+    public int triangles;
+}
@@ -0,0 +1,21 @@
+package de.uni_passau.fim.seibt.v8.util.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event marking the eviction of a slice from the cache of a <code>CachedVolume</code>.
+ */
+@Name("de.uni_passau.fim.seibt.v8.SliceEvict")
+@Label("Slice Eviction")
+@Category({"V8", "Volume"})
+@Description("A slice evicted from the cache of a CachedVolume.")
+public class SliceEvictEvent extends Event {
+
+    @Label("Z")
+    @Description("The index of the slice.")
+    public int z;
+}
@@ -0,0 +1,25 @@
+package de.uni_passau.fim.seibt.v8.util.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event covering the load of a slice into the cache of a <code>CachedVolume</code>.
+ */
+@Name("de.uni_passau.fim.seibt.v8.SliceLoad")
+@Label("Slice Load")
+@Category({"V8", "Volume"})
+@Description("A slice loaded into the cache of a CachedVolume after a miss.")
+public class SliceLoadEvent extends Event {
+
+    @Label("Z")
+    @Description("The index of the slice.")
+    public int z;
+
+    @Label("Image")
+    @Description("The image the slice was read from.")
+    public String image;
+}
@@ -0,0 +1,324 @@
+package de.uni_passau.fim.seibt.v8.util.metrics;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import de.uni_passau.fim.seibt.v8.model.mc_alg.Mesh;
+
+/**
+ * Live counters describing the throughput and memory usage of the application. The counters are fed by the
+ * <code>MCRunner</code>, <code>CachedVolume</code>, <code>DCMImage</code>, <code>Mesh</code> and
+ * <code>Exporter</code> classes. The single instance is registered with the platform <code>MBeanServer</code> the
+ * first time {@link #get()} is called.
+ */
+public class Metrics implements MetricsMXBean {
+
+    /**
+     * The <code>ObjectName</code> the <code>Metrics</code> are registered under.
+     */
+    public static final String OBJECT_NAME = "de.uni_passau.fim.seibt.v8:type=Metrics";
+
+    private static final Metrics instance = new Metrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("Could not register the metrics MBean. " + e);
+        }
+    }
+
+    /**
+     * <code>PhantomReference</code> to a <code>Mesh</code> remembering the size of its buffers.
+     */
+    private static class MeshReference extends PhantomReference<Mesh> {
+
+        private final long bytes;
+
+        private MeshReference(Mesh mesh, long bytes, ReferenceQueue<Mesh> queue) {
+            super(mesh, queue);
+            this.bytes = bytes;
+        }
+    }
+
+    private final LongAdder cubes = new LongAdder();
+    private final LongAdder activeCubes = new LongAdder();
+    private final LongAdder triangles = new LongAdder();
+    private final LongAdder marchNanos = new LongAdder();
+    private final LongAdder pausedNanos = new LongAdder();
+    private volatile int edgeCacheSize;
+
+    private final LongAdder sliceCacheHits = new LongAdder();
+    private final LongAdder sliceCacheMisses = new LongAdder();
+    private final LongAdder sliceCacheEvictions = new LongAdder();
+
+    private final LongAdder dicomReads = new LongAdder();
+    private final LongAdder dicomReadNanos = new LongAdder();
+
+    private final LongAdder meshBufferBytes = new LongAdder();
+    private final ReferenceQueue<Mesh> collectedMeshes = new ReferenceQueue<>();
+    private final Set<MeshReference> meshes = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder exports = new LongAdder();
+    private final LongAdder exportNanos = new LongAdder();
+    private final LongAdder exportBytes = new LongAdder();
+
+    private Metrics() {}
+
+    /**
+     * Returns the <code>Metrics</code> of the application.
+     *
+     * @return the <code>Metrics</code>
+     */
+    public static Metrics get() {
+        return instance;
+    }
+
+    /**
+     * Records a slice of cubes processed by a <code>MCRunner</code>.
+     *
+     * @param cubes
+     *         the number of cubes in the slice
+     * @param activeCubes
+     *         the number of cubes the surface passed through
+     * @param triangles
+     *         the number of triangles emitted for the slice
+     * @param nanos
+     *         the time in nanoseconds spent marching the slice, not including time spent paused
+     * @param edgeCacheSize
+     *         the size of the edge cache after the slice
+     */
+    public void sliceMarched(int cubes, int activeCubes, int triangles, long nanos, int edgeCacheSize) {
+        this.cubes.add(cubes);
+        this.activeCubes.add(activeCubes);
+        this.triangles.add(triangles);
+        this.marchNanos.add(nanos);
+        this.edgeCacheSize = edgeCacheSize;
+    }
+
+    /**
+     * Records the time a <code>MCRunner</code> spent paused.
+     *
+     * @param nanos
+     *         the paused time in nanoseconds
+     */
+    public void paused(long nanos) {
+        pausedNanos.add(nanos);
+    }
+
+    /**
+     * Records a slice request answered from the cache of a <code>CachedVolume</code>.
+     */
+    public void sliceCacheHit() {
+        sliceCacheHits.increment();
+    }
+
+    /**
+     * Records a slice request that required a <code>CachedVolume</code> to load the slice.
+     */
+    public void sliceCacheMiss() {
+        sliceCacheMisses.increment();
+    }
+
+    /**
+     * Records the eviction of a slice from the cache of a <code>CachedVolume</code>.
+     */
+    public void sliceCacheEviction() {
+        sliceCacheEvictions.increment();
+    }
+
+    /**
+     * Records the decoding of a DICOM frame.
+     *
+     * @param nanos
+     *         the time in nanoseconds the decoding took
+     */
+    public void dicomRead(long nanos) {
+        dicomReads.increment();
+        dicomReadNanos.add(nanos);
+    }
+
+    /**
+     * Records the creation of a <code>Mesh</code>. Its buffer bytes are counted until it is garbage collected.
+     *
+     * @param mesh
+     *         the new <code>Mesh</code>
+     * @param bytes
+     *         the size of the buffers of the <code>Mesh</code> in bytes
+     */
+    public void meshCreated(Mesh mesh, long bytes) {
+        pollCollectedMeshes();
+
+        meshes.add(new MeshReference(mesh, bytes, collectedMeshes));
+        meshBufferBytes.add(bytes);
+    }
+
+    /**
+     * Records a finished mesh export.
+     *
+     * @param nanos
+     *         the time in nanoseconds the export took
+     * @param bytes
+     *         the number of bytes written, 0 if the export failed
+     */
+    public void exported(long nanos, long bytes) {
+        exports.increment();
+        exportNanos.add(nanos);
+        exportBytes.add(bytes);
+    }
+
+    /**
+     * Subtracts the buffer bytes of all garbage collected <code>Mesh</code>es from the <code>meshBufferBytes</code>.
+     */
+    private void pollCollectedMeshes() {
+        Reference<?> ref;
+
+        while ((ref = collectedMeshes.poll()) != null) {
+            MeshReference meshRef = (MeshReference) ref;
+
+            if (meshes.remove(meshRef)) {
+                meshBufferBytes.add(-meshRef.bytes);
+            }
+        }
+    }
+
+    /**
+     * Returns the quotient of the two values or 0 if <code>denominator</code> is 0.
+     *
+     * @param numerator
+     *         the numerator
+     * @param denominator
+     *         the denominator
+     *
+     * @return the quotient
+     */
+    private static double ratio(double numerator, double denominator) {
+        return (denominator == 0) ? 0 : numerator / denominator;
+    }
+
+    @Override
+    public long getCubes() {
+        return cubes.sum();
+    }
+
+    @Override
+    public long getActiveCubes() {
+        return activeCubes.sum();
+    }
+
+    @Override
+    public double getActiveCubeRatio() {
+        return ratio(activeCubes.sum(), cubes.sum());
+    }
+
+    @Override
+    public double getCubesPerSecond() {
+        return ratio(cubes.sum(), marchNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Override
+    public long getTriangles() {
+        return triangles.sum();
+    }
+
+    @Override
+    public int getEdgeCacheSize() {
+        return edgeCacheSize;
+    }
+
+    @Override
+    public long getPausedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(pausedNanos.sum());
+    }
+
+    @Override
+    public long getSliceCacheHits() {
+        return sliceCacheHits.sum();
+    }
+
+    @Override
+    public long getSliceCacheMisses() {
+        return sliceCacheMisses.sum();
+    }
+
+    @Override
+    public double getSliceCacheHitRate() {
+        long hits = sliceCacheHits.sum();
+        return ratio(hits, hits + sliceCacheMisses.sum());
+    }
+
+    @Override
+    public long getSliceCacheEvictions() {
+        return sliceCacheEvictions.sum();
+    }
+
+    @Override
+    public long getDicomReads() {
+        return dicomReads.sum();
+    }
+
+    @Override
+    public long getDicomReadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(dicomReadNanos.sum());
+    }
+
+    @Override
+    public long getMeshBufferBytes() {
+        pollCollectedMeshes();
+        return meshBufferBytes.sum();
+    }
+
+    @Override
+    public long getDirectBufferBytes() {
+
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                return pool.getMemoryUsed();
+            }
+        }
+
+        return 0;
+    }
+
+    @Override
+    public long getExports() {
+        return exports.sum();
+    }
+
+    @Override
+    public long getExportMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(exportNanos.sum());
+    }
+
+    @Override
+    public long getExportBytes() {
+        return exportBytes.sum();
+    }
+
+    @Override
+    public void reset() {
+        cubes.reset();
+        activeCubes.reset();
+        triangles.reset();
+        marchNanos.reset();
+        pausedNanos.reset();
+        edgeCacheSize = 0;
+        sliceCacheHits.reset();
+        sliceCacheMisses.reset();
+        sliceCacheEvictions.reset();
+        dicomReads.reset();
+        dicomReadNanos.reset();
+        exports.reset();
+        exportNanos.reset();
+        exportBytes.reset();
+    }
+}
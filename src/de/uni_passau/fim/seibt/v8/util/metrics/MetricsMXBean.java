@@ -0,0 +1,141 @@
+package de.uni_passau.fim.seibt.v8.util.metrics;
+
+/**
+ * Management interface of the {@link Metrics} of the application. Registered with the platform
+ * <code>MBeanServer</code> as {@value Metrics#OBJECT_NAME}.
+ */
+public interface MetricsMXBean {
+
+    /**
+     * Returns the number of cubes processed by all <code>MCRunner</code>s.
+     *
+     * @return the number of cubes
+     */
+    long getCubes();
+
+    /**
+     * Returns the number of processed cubes the surface passed through.
+     *
+     * @return the number of active cubes
+     */
+    long getActiveCubes();
+
+    /**
+     * Returns the ratio of active cubes to processed cubes.
+     *
+     * @return the active cube ratio between 0 and 1
+     */
+    double getActiveCubeRatio();
+
+    /**
+     * Returns the number of cubes processed per second of marching time. Time spent paused is not counted as
+     * marching time.
+     *
+     * @return the cubes per second
+     */
+    double getCubesPerSecond();
+
+    /**
+     * Returns the number of triangles emitted by all <code>MCRunner</code>s.
+     *
+     * @return the number of triangles
+     */
+    long getTriangles();
+
+    /**
+     * Returns the size of the edge cache of the <code>MCRunner</code> that finished a slice last.
+     *
+     * @return the edge cache size
+     */
+    int getEdgeCacheSize();
+
+    /**
+     * Returns the time in milliseconds <code>MCRunner</code>s spent paused.
+     *
+     * @return the paused time in milliseconds
+     */
+    long getPausedMillis();
+
+    /**
+     * Returns the number of slice requests that were answered from the cache of a <code>CachedVolume</code>.
+     *
+     * @return the number of cache hits
+     */
+    long getSliceCacheHits();
+
+    /**
+     * Returns the number of slice requests that required a <code>CachedVolume</code> to load the slice.
+     *
+     * @return the number of cache misses
+     */
+    long getSliceCacheMisses();
+
+    /**
+     * Returns the ratio of cache hits to slice requests of all <code>CachedVolume</code>s.
+     *
+     * @return the hit rate between 0 and 1
+     */
+    double getSliceCacheHitRate();
+
+    /**
+     * Returns the number of slices evicted from the cache of a <code>CachedVolume</code>.
+     *
+     * @return the number of evictions
+     */
+    long getSliceCacheEvictions();
+
+    /**
+     * Returns the number of DICOM frames decoded.
+     *
+     * @return the number of decoded frames
+     */
+    long getDicomReads();
+
+    /**
+     * Returns the time in milliseconds spent decoding DICOM frames.
+     *
+     * @return the decode time in milliseconds
+     */
+    long getDicomReadMillis();
+
+    /**
+     * Returns the number of bytes of direct buffers held by <code>Mesh</code>es that have not been garbage
+     * collected yet.
+     *
+     * @return the mesh buffer bytes
+     */
+    long getMeshBufferBytes();
+
+    /**
+     * Returns the number of bytes of all direct buffers of the JVM.
+     *
+     * @return the direct buffer bytes
+     */
+    long getDirectBufferBytes();
+
+    /**
+     * Returns the number of finished mesh exports.
+     *
+     * @return the number of exports
+     */
+    long getExports();
+
+    /**
+     * Returns the time in milliseconds spent exporting meshes.
+     *
+     * @return the export time in milliseconds
+     */
+    long getExportMillis();
+
+    /**
+     * Returns the number of bytes written by mesh exports.
+     *
+     * @return the exported bytes
+     */
+    long getExportBytes();
+
+    /**
+     * Resets all counters to 0.
+     */
+    void reset();
+}